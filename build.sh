@@ -7,7 +7,9 @@ help="Usage:\n
 cgen : Compile GenerateAst script\n
 rgen : Run GenerateAst script\n
 clox : Compile Lox files\n
-rlox [FILE] : Run Lox with or without file"
+rlox [FILE] : Run Lox with or without file\n
+bench [--engine=tree|closure|vm] FILE : Run Lox with file, report time and memory use\n
+bench --scan FILE : Scan file over and over, report scanner throughput"
 
 if [ $# -eq 0 ]; then
     echo "build.sh"
@@ -38,6 +40,11 @@ elif [ "$1" = "rlox" ]; then
         echo "Run Lox with file: $2"
         java -cp build/java com.craftinginterpreters.lox.Lox "$2"
     fi
+elif [ "$1" = "bench" ]; then
+    # Benchmark Lox
+    echo "Benchmark Lox with: ${*:2}"
+    javac -d build/java -cp build/java $srcDir/com/craftinginterpreters/tool/Benchmark.java
+    java -cp build/java com.craftinginterpreters.tool.Benchmark "${@:2}"
 
 fi
 
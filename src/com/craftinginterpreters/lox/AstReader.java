@@ -0,0 +1,255 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.AstWriter.*;
+
+// Reads back a script written by AstWriter, with the fields the
+// Resolver filled in, ready to run.
+class AstReader {
+  private static final TokenType[] TYPES = TokenType.values();
+
+  private final ByteBuffer in;
+  private final List<String> strings = new ArrayList<>();
+  private int line = 0;
+  // The frame size of the script's top level.
+  int frameSize;
+
+  AstReader(ByteBuffer in) {
+    this.in = in;
+  }
+
+  // Throws IllegalArgumentException or a BufferUnderflowException if the
+  // bytes are not a script.
+  List<Stmt> read() {
+    frameSize = readInt();
+    return readStmts();
+  }
+
+  private List<Stmt> readStmts() {
+    int count = readInt();
+    List<Stmt> statements = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) statements.add(readStmt());
+    return statements;
+  }
+
+  private Stmt readStmt() {
+    int tag = in.get();
+    switch (tag) {
+      case 0: return null;
+
+      case BLOCK: return new Stmt.Block(readStmts());
+
+      case BREAK: {
+        Stmt.Break stmt = new Stmt.Break(readToken());
+        stmt.isInLoop = readBoolean();
+        return stmt;
+      }
+
+      case CLASS: {
+        Token name = readToken();
+        Expr.Variable superclass = (Expr.Variable)readExpr();
+        int count = readInt();
+        List<Stmt.Function> methods = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          methods.add((Stmt.Function)readStmt());
+        }
+        Stmt.Class stmt = new Stmt.Class(name, superclass, methods);
+        stmt.slot = readInt();
+        stmt.isGlobal = readBoolean();
+        stmt.isCaptured = readBoolean();
+        stmt.superSlot = readInt();
+        return stmt;
+      }
+
+      case EXPRESSION: return new Stmt.Expression(readExpr());
+
+      case FOR:
+        return new Stmt.For(readStmt(), readExpr(), readExpr(), readStmt());
+
+      case FUNCTION_STMT: {
+        Stmt.Function stmt = new Stmt.Function(readToken(),
+            (Expr.Function)readExpr());
+        stmt.slot = readInt();
+        stmt.isGlobal = readBoolean();
+        stmt.isCaptured = readBoolean();
+        return stmt;
+      }
+
+      case IF: return new Stmt.If(readExpr(), readStmt(), readStmt());
+
+      case PRINT: return new Stmt.Print(readExpr());
+
+      case RETURN: {
+        Stmt.Return stmt = new Stmt.Return(readToken(), readExpr());
+        stmt.isTailCall = readBoolean();
+        return stmt;
+      }
+
+      case VAR: {
+        Stmt.Var stmt = new Stmt.Var(readToken(), readExpr());
+        stmt.slot = readInt();
+        stmt.isGlobal = readBoolean();
+        stmt.isCaptured = readBoolean();
+        return stmt;
+      }
+
+      case WHILE: return new Stmt.While(readExpr(), readStmt());
+    }
+
+    throw new IllegalArgumentException("Unknown statement tag " + tag + ".");
+  }
+
+  private Expr readExpr() {
+    int tag = in.get();
+    switch (tag) {
+      case 0: return null;
+
+      case ASSIGN: {
+        Expr.Assign expr = new Expr.Assign(readToken(), readToken(),
+            readExpr());
+        expr.slot = readInt();
+        expr.isGlobal = readBoolean();
+        expr.isCaptured = readBoolean();
+        expr.isUpvalue = readBoolean();
+        return expr;
+      }
+
+      case BINARY:
+        return new Expr.Binary(readExpr(), readToken(), readExpr());
+
+      case TERNARY:
+        return new Expr.Ternary(readExpr(), readExpr(), readExpr());
+
+      case CALL: {
+        Expr callee = readExpr();
+        Token paren = readToken();
+        int count = readInt();
+        List<Expr> arguments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) arguments.add(readExpr());
+        return new Expr.Call(callee, paren, arguments);
+      }
+
+      case GET: return new Expr.Get(readExpr(), readToken());
+
+      case FUNCTION: {
+        int count = readInt();
+        List<Token> params = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) params.add(readToken());
+        Expr.Function expr = new Expr.Function(params, readStmts());
+        expr.slotCount = readInt();
+        expr.capturedParams = new boolean[readInt()];
+        for (int i = 0; i < expr.capturedParams.length; i++) {
+          expr.capturedParams[i] = readBoolean();
+        }
+        int upvalueCount = readInt();
+        expr.upvalueIsLocal = new boolean[upvalueCount];
+        expr.upvalueIndexes = new int[upvalueCount];
+        for (int i = 0; i < upvalueCount; i++) {
+          expr.upvalueIsLocal[i] = readBoolean();
+          expr.upvalueIndexes[i] = readInt();
+        }
+        return expr;
+      }
+
+      case GROUPING: return new Expr.Grouping(readExpr());
+
+      case LITERAL: return new Expr.Literal(readValue());
+
+      case LOGICAL:
+        return new Expr.Logical(readExpr(), readToken(), readExpr());
+
+      case SET: return new Expr.Set(readExpr(), readToken(), readExpr());
+
+      case SUPER: {
+        Expr.Super expr = new Expr.Super(readToken(), readToken());
+        expr.slot = readInt();
+        expr.isGlobal = readBoolean();
+        expr.isCaptured = readBoolean();
+        expr.isUpvalue = readBoolean();
+        expr.receiver = (Expr.This)readExpr();
+        return expr;
+      }
+
+      case THIS: {
+        Expr.This expr = new Expr.This(readToken());
+        expr.slot = readInt();
+        expr.isGlobal = readBoolean();
+        expr.isCaptured = readBoolean();
+        expr.isUpvalue = readBoolean();
+        return expr;
+      }
+
+      case UNARY:
+        return new Expr.Unary(readToken(), readExpr(), readBoolean());
+
+      case VARIABLE: {
+        Expr.Variable expr = new Expr.Variable(readToken());
+        expr.slot = readInt();
+        expr.isGlobal = readBoolean();
+        expr.isCaptured = readBoolean();
+        expr.isUpvalue = readBoolean();
+        return expr;
+      }
+    }
+
+    throw new IllegalArgumentException("Unknown expression tag " + tag + ".");
+  }
+
+  private Token readToken() {
+    TokenType type = TYPES[in.get()];
+    String lexeme = readString();
+    Object literal = readValue();
+    line += readInt();
+    int col = readInt();
+    int symbol = type == TokenType.IDENTIFIER || type == TokenType.THIS ||
+        type == TokenType.SUPER ? Symbols.intern(lexeme) : -1;
+    return new Token(type, lexeme, 0, literal, line, col, symbol);
+  }
+
+  private Object readValue() {
+    int tag = in.get();
+    switch (tag) {
+      case NIL: return null;
+      case TRUE: return true;
+      case FALSE: return false;
+      case INTEGER: return readLong();
+      case DOUBLE: return in.getDouble();
+      case STRING: return readString();
+    }
+
+    throw new IllegalArgumentException("Unknown value tag " + tag + ".");
+  }
+
+  private String readString() {
+    int index = readInt();
+    if (index > 0) return strings.get(index - 1);
+
+    byte[] bytes = new byte[readInt()];
+    in.get(bytes);
+    String string = new String(bytes, StandardCharsets.UTF_8);
+    strings.add(string);
+    return string;
+  }
+
+  private boolean readBoolean() {
+    return in.get() != 0;
+  }
+
+  private int readInt() {
+    return (int)readLong();
+  }
+
+  private long readLong() {
+    long bits = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      bits |= (long)(b & 0x7f) << shift;
+      if (b >= 0) break;
+    }
+    return (bits >>> 1) ^ -(bits & 1);
+  }
+}
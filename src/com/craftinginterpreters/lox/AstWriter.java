@@ -0,0 +1,372 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes a resolved and optimized script as bytes, for the .loxc cache.
+// AstReader reads it back.
+//
+// Nodes are written in prefix order, a tag byte then their fields,
+// including those the Resolver filled in. Ints are varints. A token's
+// line is written as the difference from the line of the token before,
+// which fits in a byte. Each string is written in full the first time,
+// as a 0 followed by its UTF-8 bytes, and as its index + 1 in the table
+// of those seen so far after that, so a name is only stored once.
+class AstWriter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  // Tags of the nodes. 0 is null.
+  static final int ASSIGN = 1, BINARY = 2, TERNARY = 3, CALL = 4, GET = 5,
+      FUNCTION = 6, GROUPING = 7, LITERAL = 8, LOGICAL = 9, SET = 10,
+      SUPER = 11, THIS = 12, UNARY = 13, VARIABLE = 14;
+  static final int BLOCK = 15, BREAK = 16, CLASS = 17, EXPRESSION = 18,
+      FOR = 19, FUNCTION_STMT = 20, IF = 21, PRINT = 22, RETURN = 23,
+      VAR = 24, WHILE = 25;
+
+  // Tags of literal values.
+  static final int NIL = 0, TRUE = 1, FALSE = 2, INTEGER = 3, DOUBLE = 4,
+      STRING = 5;
+
+  private byte[] bytes = new byte[4096];
+  private int length = 0;
+  private final Map<String, Integer> strings = new HashMap<>();
+  private int line = 0;
+
+  // Throws IllegalArgumentException for a value it cannot write.
+  byte[] write(List<Stmt> statements, int frameSize) {
+    writeInt(frameSize);
+    writeStmts(statements);
+    return Arrays.copyOf(bytes, length);
+  }
+
+  private void writeStmts(List<? extends Stmt> statements) {
+    writeInt(statements.size());
+    for (Stmt statement : statements) write(statement);
+  }
+
+  private void write(Stmt stmt) {
+    if (stmt == null) {
+      write(0);
+    } else {
+      stmt.accept(this);
+    }
+  }
+
+  private void write(Expr expr) {
+    if (expr == null) {
+      write(0);
+    } else {
+      expr.accept(this);
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    write(BLOCK);
+    writeStmts(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    write(BREAK);
+    write(stmt.keyword);
+    writeBoolean(stmt.isInLoop);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    write(CLASS);
+    write(stmt.name);
+    write(stmt.superclass);
+    writeStmts(stmt.methods);
+    writeSlot(stmt.slot, stmt.isGlobal, stmt.isCaptured);
+    writeInt(stmt.superSlot);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    write(EXPRESSION);
+    write(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    write(FOR);
+    write(stmt.initializer);
+    write(stmt.condition);
+    write(stmt.increment);
+    write(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    write(FUNCTION_STMT);
+    write(stmt.name);
+    write(stmt.function);
+    writeSlot(stmt.slot, stmt.isGlobal, stmt.isCaptured);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    write(IF);
+    write(stmt.condition);
+    write(stmt.thenBranch);
+    write(stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    write(PRINT);
+    write(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    write(RETURN);
+    write(stmt.keyword);
+    write(stmt.value);
+    writeBoolean(stmt.isTailCall);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    write(VAR);
+    write(stmt.name);
+    write(stmt.initializer);
+    writeSlot(stmt.slot, stmt.isGlobal, stmt.isCaptured);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    write(WHILE);
+    write(stmt.condition);
+    write(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    write(ASSIGN);
+    write(expr.name);
+    write(expr.equals);
+    write(expr.value);
+    writeVariable(expr.slot, expr.isGlobal, expr.isCaptured, expr.isUpvalue);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    write(BINARY);
+    write(expr.left);
+    write(expr.operator);
+    write(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitTernaryExpr(Expr.Ternary expr) {
+    write(TERNARY);
+    write(expr.condition);
+    write(expr.thenBranch);
+    write(expr.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    write(CALL);
+    write(expr.callee);
+    write(expr.paren);
+    writeInt(expr.arguments.size());
+    for (Expr argument : expr.arguments) write(argument);
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    write(GET);
+    write(expr.object);
+    write(expr.name);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    if (expr.lazy != null) {
+      throw new IllegalArgumentException("Function body not loaded.");
+    }
+
+    write(FUNCTION);
+    writeInt(expr.params.size());
+    for (Token param : expr.params) write(param);
+    writeStmts(expr.body);
+    writeInt(expr.slotCount);
+    writeInt(expr.capturedParams.length);
+    for (boolean isCaptured : expr.capturedParams) writeBoolean(isCaptured);
+    writeInt(expr.upvalueIndexes.length);
+    for (int i = 0; i < expr.upvalueIndexes.length; i++) {
+      writeBoolean(expr.upvalueIsLocal[i]);
+      writeInt(expr.upvalueIndexes[i]);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    write(GROUPING);
+    write(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    write(LITERAL);
+    writeValue(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    write(LOGICAL);
+    write(expr.left);
+    write(expr.operator);
+    write(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    write(SET);
+    write(expr.object);
+    write(expr.name);
+    write(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    write(SUPER);
+    write(expr.keyword);
+    write(expr.method);
+    writeVariable(expr.slot, expr.isGlobal, expr.isCaptured, expr.isUpvalue);
+    write(expr.receiver);
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    write(THIS);
+    write(expr.keyword);
+    writeVariable(expr.slot, expr.isGlobal, expr.isCaptured, expr.isUpvalue);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    write(UNARY);
+    write(expr.operator);
+    write(expr.right);
+    writeBoolean(expr.isPostfix);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    write(VARIABLE);
+    write(expr.name);
+    writeVariable(expr.slot, expr.isGlobal, expr.isCaptured, expr.isUpvalue);
+    return null;
+  }
+
+  private void writeSlot(int slot, boolean isGlobal, boolean isCaptured) {
+    writeInt(slot);
+    writeBoolean(isGlobal);
+    writeBoolean(isCaptured);
+  }
+
+  private void writeVariable(int slot, boolean isGlobal, boolean isCaptured,
+                             boolean isUpvalue) {
+    writeSlot(slot, isGlobal, isCaptured);
+    writeBoolean(isUpvalue);
+  }
+
+  private void write(Token token) {
+    write(token.type.ordinal());
+    writeString(token.lexeme());
+    writeValue(token.literal);
+    writeInt(token.line - line);
+    writeInt(token.col);
+    line = token.line;
+  }
+
+  private void writeValue(Object value) {
+    if (value == null) {
+      write(NIL);
+    } else if (value instanceof Boolean) {
+      write((Boolean)value ? TRUE : FALSE);
+    } else if (value instanceof Long) {
+      write(INTEGER);
+      writeLong((Long)value);
+    } else if (value instanceof Double) {
+      write(DOUBLE);
+      long bits = Double.doubleToRawLongBits((Double)value);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        write((int)(bits >>> shift));
+      }
+    } else if (value instanceof String) {
+      write(STRING);
+      writeString((String)value);
+    } else {
+      throw new IllegalArgumentException(
+          "Cannot write a " + value.getClass().getSimpleName() + ".");
+    }
+  }
+
+  private void writeString(String string) {
+    Integer index = strings.get(string);
+    if (index != null) {
+      writeInt(index + 1);
+      return;
+    }
+
+    strings.put(string, strings.size());
+    writeInt(0);
+    byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+    writeInt(utf8.length);
+    for (byte b : utf8) write(b);
+  }
+
+  private void writeBoolean(boolean value) {
+    write(value ? 1 : 0);
+  }
+
+  private void writeInt(int value) {
+    writeLong(value);
+  }
+
+  // Zigzag, then seven bits a byte, low bits first.
+  private void writeLong(long value) {
+    long bits = (value << 1) ^ (value >> 63);
+    while ((bits & ~0x7fL) != 0) {
+      write((int)((bits & 0x7f) | 0x80));
+      bits >>>= 7;
+    }
+    write((int)bits);
+  }
+
+  private void write(int b) {
+    if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+    bytes[length++] = (byte)b;
+  }
+}
@@ -0,0 +1,291 @@
+package com.craftinginterpreters.lox;
+
+// Self-specializing implementation of a binary operator.
+// An Expr.Binary has no node until it first runs. It then picks the
+// node matching the operator and the operand types it saw. When a
+// specialized node gets operands of other types, it rewrites the
+// expression to the generic node for good. Anything a node does not
+// handle itself goes to Operators.binary(), so results and runtime
+// errors are the same as without specialization.
+abstract class BinaryNode {
+
+  abstract Object execute(Expr.Binary expr, Object left, Object right);
+
+  static BinaryNode specialize(Token operator, Object left, Object right) {
+    if (left instanceof Long && right instanceof Long) {
+      switch (operator.type) {
+        case PLUS:          return LONG_ADD;
+        case MINUS:         return LONG_SUBTRACT;
+        case STAR:          return LONG_MULTIPLY;
+        case SLASH:         return LONG_DIVIDE;
+        case MOD:           return LONG_MOD;
+        case GREATER:       return LONG_GREATER;
+        case GREATER_EQUAL: return LONG_GREATER_EQUAL;
+        case LESSER:        return LONG_LESS;
+        case LESSER_EQUAL:  return LONG_LESS_EQUAL;
+        case EQUAL_EQUAL:   return LONG_EQUAL;
+        case BANG_EQUAL:    return LONG_NOT_EQUAL;
+        case BIT_AND:       return LONG_BIT_AND;
+        case BIT_OR:        return LONG_BIT_OR;
+        case BIT_XOR:       return LONG_BIT_XOR;
+        case BIT_LEFT:      return LONG_BIT_LEFT;
+        case BIT_RIGHT:     return LONG_BIT_RIGHT;
+      }
+    }
+
+    if (left instanceof Double && right instanceof Double) {
+      switch (operator.type) {
+        case PLUS:          return DOUBLE_ADD;
+        case MINUS:         return DOUBLE_SUBTRACT;
+        case STAR:          return DOUBLE_MULTIPLY;
+        case SLASH:         return DOUBLE_DIVIDE;
+        case MOD:           return DOUBLE_MOD;
+        case EXP:           return DOUBLE_EXP;
+        case GREATER:       return DOUBLE_GREATER;
+        case GREATER_EQUAL: return DOUBLE_GREATER_EQUAL;
+        case LESSER:        return DOUBLE_LESS;
+        case LESSER_EQUAL:  return DOUBLE_LESS_EQUAL;
+        case EQUAL_EQUAL:   return DOUBLE_EQUAL;
+        case BANG_EQUAL:    return DOUBLE_NOT_EQUAL;
+      }
+    }
+
+    if (Operators.isString(left) && Operators.isString(right) &&
+        operator.type == TokenType.PLUS) {
+      return STRING_CONCAT;
+    }
+
+    return GENERIC;
+  }
+
+  // The operands no longer match this node: fall back to the
+  // generic node from now on.
+  static Object generalize(Expr.Binary expr, Object left, Object right) {
+    expr.node = GENERIC;
+    return Operators.binary(expr.operator, left, right);
+  }
+
+  static final BinaryNode GENERIC = new BinaryNode() {
+    Object execute(Expr.Binary expr, Object left, Object right) {
+      return Operators.binary(expr.operator, left, right);
+    }
+  };
+
+  // A node for an arithmetic operator on two doubles. The Interpreter
+  // can call executeDouble() directly to keep the result unboxed.
+  abstract static class DoubleNode extends BinaryNode {
+    abstract double executeDouble(Expr.Binary expr, double left, double right);
+
+    Object execute(Expr.Binary expr, Object left, Object right) {
+      if (left instanceof Double && right instanceof Double) {
+        return executeDouble(expr, (double)left, (double)right);
+      }
+      return generalize(expr, left, right);
+    }
+  }
+
+  // A node comparing two doubles.
+  abstract static class DoubleCompareNode extends BinaryNode {
+    abstract boolean compare(double left, double right);
+
+    Object execute(Expr.Binary expr, Object left, Object right) {
+      if (left instanceof Double && right instanceof Double) {
+        return compare((double)left, (double)right);
+      }
+      return generalize(expr, left, right);
+    }
+  }
+
+  static final BinaryNode DOUBLE_ADD = new DoubleNode() {
+    double executeDouble(Expr.Binary expr, double left, double right) {
+      return left + right;
+    }
+  };
+
+  static final BinaryNode DOUBLE_SUBTRACT = new DoubleNode() {
+    double executeDouble(Expr.Binary expr, double left, double right) {
+      return left - right;
+    }
+  };
+
+  static final BinaryNode DOUBLE_MULTIPLY = new DoubleNode() {
+    double executeDouble(Expr.Binary expr, double left, double right) {
+      return left * right;
+    }
+  };
+
+  static final BinaryNode DOUBLE_DIVIDE = new DoubleNode() {
+    double executeDouble(Expr.Binary expr, double left, double right) {
+      return Operators.divide(expr.operator, left, right);
+    }
+  };
+
+  static final BinaryNode DOUBLE_MOD = new DoubleNode() {
+    double executeDouble(Expr.Binary expr, double left, double right) {
+      return Operators.modulo(expr.operator, left, right);
+    }
+  };
+
+  static final BinaryNode DOUBLE_EXP = new DoubleNode() {
+    double executeDouble(Expr.Binary expr, double left, double right) {
+      return Math.pow(left, right);
+    }
+  };
+
+  static final BinaryNode DOUBLE_GREATER = new DoubleCompareNode() {
+    boolean compare(double left, double right) {
+      return left > right;
+    }
+  };
+
+  static final BinaryNode DOUBLE_GREATER_EQUAL = new DoubleCompareNode() {
+    boolean compare(double left, double right) {
+      return left >= right;
+    }
+  };
+
+  static final BinaryNode DOUBLE_LESS = new DoubleCompareNode() {
+    boolean compare(double left, double right) {
+      return left < right;
+    }
+  };
+
+  static final BinaryNode DOUBLE_LESS_EQUAL = new DoubleCompareNode() {
+    boolean compare(double left, double right) {
+      return left <= right;
+    }
+  };
+
+  // Same as Operators.isEqual(): Double.equals() compares the bits,
+  // so NaN equals NaN and 0 differs from -0.
+  static final BinaryNode DOUBLE_EQUAL = new DoubleCompareNode() {
+    boolean compare(double left, double right) {
+      return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+    }
+  };
+
+  static final BinaryNode DOUBLE_NOT_EQUAL = new DoubleCompareNode() {
+    boolean compare(double left, double right) {
+      return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+    }
+  };
+
+  static final BinaryNode STRING_CONCAT = new BinaryNode() {
+    Object execute(Expr.Binary expr, Object left, Object right) {
+      if (Operators.isString(left) && Operators.isString(right)) {
+        return LoxString.concat((CharSequence)left, (CharSequence)right);
+      }
+      return generalize(expr, left, right);
+    }
+  };
+
+  // A node for an operator on two integers, which stay Longs.
+  abstract static class LongNode extends BinaryNode {
+    abstract Object executeLong(Expr.Binary expr, long left, long right);
+
+    Object execute(Expr.Binary expr, Object left, Object right) {
+      if (left instanceof Long && right instanceof Long) {
+        return executeLong(expr, (long)left, (long)right);
+      }
+      return generalize(expr, left, right);
+    }
+  }
+
+  static final BinaryNode LONG_ADD = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return Operators.add(left, right);
+    }
+  };
+
+  static final BinaryNode LONG_SUBTRACT = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return Operators.subtract(left, right);
+    }
+  };
+
+  static final BinaryNode LONG_MULTIPLY = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return Operators.multiply(left, right);
+    }
+  };
+
+  static final BinaryNode LONG_DIVIDE = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return Operators.divide(expr.operator, left, right);
+    }
+  };
+
+  static final BinaryNode LONG_MOD = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return Operators.modulo(expr.operator, left, right);
+    }
+  };
+
+  static final BinaryNode LONG_GREATER = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left > right;
+    }
+  };
+
+  static final BinaryNode LONG_GREATER_EQUAL = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left >= right;
+    }
+  };
+
+  static final BinaryNode LONG_LESS = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left < right;
+    }
+  };
+
+  static final BinaryNode LONG_LESS_EQUAL = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left <= right;
+    }
+  };
+
+  static final BinaryNode LONG_EQUAL = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left == right;
+    }
+  };
+
+  static final BinaryNode LONG_NOT_EQUAL = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left != right;
+    }
+  };
+
+  // Bitwise operators work on all 64 bits.
+  static final BinaryNode LONG_BIT_AND = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left & right;
+    }
+  };
+
+  static final BinaryNode LONG_BIT_OR = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left | right;
+    }
+  };
+
+  static final BinaryNode LONG_BIT_XOR = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left ^ right;
+    }
+  };
+
+  static final BinaryNode LONG_BIT_LEFT = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left << right;
+    }
+  };
+
+  static final BinaryNode LONG_BIT_RIGHT = new LongNode() {
+    Object executeLong(Expr.Binary expr, long left, long right) {
+      return left >> right;
+    }
+  };
+
+}
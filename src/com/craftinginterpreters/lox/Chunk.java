@@ -0,0 +1,58 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A sequence of bytecode instructions with its constant pool and its
+// line table.
+class Chunk {
+  byte[] code = new byte[64];
+  int count = 0;
+
+  Object[] constants = new Object[16];
+  int constantCount = 0;
+  // Names and literals already in the pool, while compiling.
+  private Map<Object, Integer> constantIndex = new HashMap<>();
+
+  // Line table: the source token each instruction was compiled from,
+  // indexed by the offset of the opcode. It gives the line and column
+  // of runtime errors, and the operator for the generic operator path.
+  Token[] tokens = new Token[64];
+
+  void write(byte value, Token token) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      tokens = Arrays.copyOf(tokens, count * 2);
+    }
+
+    code[count] = value;
+    tokens[count] = token;
+    count++;
+  }
+
+  int addConstant(Object value) {
+    // Reuse an existing entry for names and literals.
+    boolean shared = !(value instanceof VmFunction);
+    if (shared) {
+      Integer index = constantIndex.get(value);
+      if (index != null) return index;
+    }
+
+    if (constantCount == constants.length) {
+      constants = Arrays.copyOf(constants, constantCount * 2);
+    }
+    constants[constantCount] = value;
+    if (shared) constantIndex.put(value, constantCount);
+    return constantCount++;
+  }
+
+  // Drop the unused capacity once the chunk is complete.
+  void trim() {
+    code = Arrays.copyOf(code, count);
+    tokens = Arrays.copyOf(tokens, count);
+    constants = Arrays.copyOf(constants, constantCount);
+    constantIndex = null;
+  }
+
+}
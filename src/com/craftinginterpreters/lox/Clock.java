@@ -0,0 +1,20 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+class Clock implements LoxCallable {
+
+    @Override
+      public int arity() { return 0; }
+
+      @Override
+      public Object call(Interpreter interpreter,
+                         List<Object> arguments) {
+        return (double)System.currentTimeMillis() / 1000.0;
+      }
+
+      @Override
+      public String toString() { return "<native fn>"; }
+
+}
+
@@ -0,0 +1,721 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+
+// The closure-compiling engine, selected with --engine=closure. It
+// walks the resolved AST once and turns every node into a Java lambda
+// that already holds its children, its operator and its variable slot.
+// Running the program calls the lambdas, so there is no accept/visit
+// double dispatch, no switch on the operator and no lookup of how a
+// variable is stored: all of that was decided while compiling.
+//
+// The lambdas work on the Interpreter's frames, upvalues and globals,
+// and go through Operators for anything past the number fast paths,
+// so results and runtime errors are the same as the tree-walker's.
+// Function bodies are compiled the first time they run.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Evaluator>,
+                                 Stmt.Visitor<ClosureCompiler.Executor> {
+  // A compiled expression.
+  interface Evaluator {
+    Object evaluate();
+  }
+
+  // A compiled statement.
+  interface Executor {
+    void execute();
+  }
+
+  // An operator's fast path for two integers.
+  private interface LongOperator {
+    Object apply(long left, long right);
+  }
+
+  private interface LongComparison {
+    boolean test(long left, long right);
+  }
+
+  private interface DoubleComparison {
+    boolean test(double left, double right);
+  }
+
+  // Writes a compiled variable.
+  private interface Store {
+    void store(Object value);
+  }
+
+  private final Interpreter interpreter;
+
+  ClosureCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  Executor compile(List<Stmt> statements) {
+    Executor[] executors = new Executor[statements.size()];
+    for (int i = 0; i < executors.length; i++) {
+      executors[i] = compile(statements.get(i));
+    }
+
+    if (executors.length == 1) return executors[0];
+    return () -> {
+      for (Executor executor : executors) executor.execute();
+    };
+  }
+
+  // The body of 'function', compiled on its first call.
+  Executor body(Expr.Function function) {
+    if (function.code == null) function.code = compile(function.body);
+    return function.code;
+  }
+
+  private Executor compile(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Evaluator compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private Evaluator[] compileAll(List<Expr> exprs) {
+    Evaluator[] evaluators = new Evaluator[exprs.size()];
+    for (int i = 0; i < evaluators.length; i++) {
+      evaluators[i] = compile(exprs.get(i));
+    }
+    return evaluators;
+  }
+
+  @Override
+  public Executor visitBlockStmt(Stmt.Block stmt) {
+    return compile(stmt.statements);
+  }
+
+  @Override
+  public Executor visitBreakStmt(Stmt.Break stmt) {
+    Token keyword = stmt.keyword;
+    if (!stmt.isInLoop) {
+      String msg = keyword.type == TokenType.BREAK
+          ? "Error: Break must with while loop"
+          : "Error: Continue must with while loop";
+      return () -> {
+        throw new RuntimeError(keyword, msg);
+      };
+    }
+
+    LoopSignal signal = keyword.type == TokenType.BREAK
+        ? LoopSignal.BREAK : LoopSignal.CONTINUE;
+    return () -> {
+      throw signal;
+    };
+  }
+
+  @Override
+  public Executor visitClassStmt(Stmt.Class stmt) {
+    Interpreter interp = interpreter;
+    Evaluator superclass = stmt.superclass == null
+        ? null : compile(stmt.superclass);
+    Token superName = stmt.superclass == null ? null : stmt.superclass.name;
+    int superSlot = stmt.superSlot;
+    int slot = stmt.slot;
+    boolean isCaptured = stmt.isCaptured;
+    Store define = define(stmt.name, stmt.isGlobal, slot, false);
+    String name = stmt.name.lexeme();
+    List<Stmt.Function> methods = stmt.methods;
+
+    return () -> {
+      LoxClass parent = null;
+      if (superclass != null) {
+        Object value = superclass.evaluate();
+        interp.outputResult = value;
+        if (!(value instanceof LoxClass)) {
+          throw new RuntimeError(superName, "Superclass must be a class.");
+        }
+        parent = (LoxClass)value;
+        interp.stack[interp.fp + superSlot] = Environment.Cell.local(parent);
+      }
+
+      Environment.Cell cell = isCaptured ? interp.newCell(slot) : null;
+
+      SymbolTable<LoxFunction> functions =
+          new SymbolTable<>(methods.size());
+      for (Stmt.Function method : methods) {
+        int symbol = method.name.symbol;
+        functions.put(symbol, new LoxFunction(method.name.lexeme(),
+            method.function, interp.capture(method.function),
+            symbol == Symbols.INIT, true, null));
+      }
+
+      LoxClass klass = new LoxClass(name, parent, functions);
+      if (cell != null) {
+        cell.value = klass;
+      } else {
+        define.store(klass);
+      }
+    };
+  }
+
+  @Override
+  public Executor visitExpressionStmt(Stmt.Expression stmt) {
+    Interpreter interp = interpreter;
+    Evaluator expression = compile(stmt.expression);
+    return () -> interp.outputResult = expression.evaluate();
+  }
+
+  @Override
+  public Executor visitFunctionStmt(Stmt.Function stmt) {
+    Interpreter interp = interpreter;
+    Expr.Function declaration = stmt.function;
+    String name = stmt.name.lexeme();
+    int slot = stmt.slot;
+    boolean isCaptured = stmt.isCaptured;
+    Store define = define(stmt.name, stmt.isGlobal, slot, false);
+
+    return () -> {
+      Environment.Cell cell = isCaptured ? interp.newCell(slot) : null;
+      LoxFunction function = new LoxFunction(name, declaration,
+          interp.capture(declaration), false);
+      if (cell != null) {
+        cell.value = function;
+      } else {
+        define.store(function);
+      }
+    };
+  }
+
+  @Override
+  public Executor visitIfStmt(Stmt.If stmt) {
+    Interpreter interp = interpreter;
+    Evaluator condition = compile(stmt.condition);
+    Executor thenBranch = compile(stmt.thenBranch);
+    if (stmt.elseBranch == null) {
+      return () -> {
+        Object value = condition.evaluate();
+        interp.outputResult = value;
+        if (Operators.isTruthy(value)) thenBranch.execute();
+      };
+    }
+
+    Executor elseBranch = compile(stmt.elseBranch);
+    return () -> {
+      Object value = condition.evaluate();
+      interp.outputResult = value;
+      if (Operators.isTruthy(value)) {
+        thenBranch.execute();
+      } else {
+        elseBranch.execute();
+      }
+    };
+  }
+
+  @Override
+  public Executor visitPrintStmt(Stmt.Print stmt) {
+    Interpreter interp = interpreter;
+    Evaluator expression = compile(stmt.expression);
+    return () -> {
+      Object value = expression.evaluate();
+      interp.outputResult = value;
+      System.out.println(Operators.stringify(value));
+      interp.isPrint = true;
+    };
+  }
+
+  @Override
+  public Executor visitReturnStmt(Stmt.Return stmt) {
+    Interpreter interp = interpreter;
+    if (stmt.isTailCall) return tailCall((Expr.Call)stmt.value);
+
+    if (stmt.value == null) {
+      return () -> {
+        throw new Return(null);
+      };
+    }
+
+    Evaluator value = compile(stmt.value);
+    return () -> {
+      Object result = value.evaluate();
+      interp.outputResult = result;
+      throw new Return(result);
+    };
+  }
+
+  // Leaves the callee and arguments in the Interpreter for
+  // LoxFunction.invoke(), as the tree-walker does.
+  private Executor tailCall(Expr.Call call) {
+    Interpreter interp = interpreter;
+    Evaluator[] arguments = compileAll(call.arguments);
+
+    if (call.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get)call.callee;
+      Evaluator object = compile(get.object);
+      Token name = get.name;
+      InlineCache cache = call.cache;
+      return () -> {
+        LoxInstance receiver = instance(object.evaluate(), name);
+        Object callee = receiver.getForInvoke(name, cache);
+        tailCall(call, callee, receiver, arguments(arguments));
+      };
+    }
+
+    Evaluator callee = compile(call.callee);
+    return () -> {
+      Object function = callee.evaluate();
+      tailCall(call, function, null, arguments(arguments));
+    };
+  }
+
+  private void tailCall(Expr.Call call, Object callee,
+                        LoxInstance receiver, List<Object> arguments) {
+    if (callee instanceof LoxFunction) {
+      LoxFunction function = (LoxFunction)callee;
+      interpreter.checkArity(call, function, arguments);
+      interpreter.tailCallee = function;
+      interpreter.tailReceiver = function.isUnboundMethod()
+          ? receiver : function.receiver;
+      interpreter.tailArguments = arguments;
+      throw TailCall.SIGNAL;
+    }
+
+    throw new Return(interpreter.callFunction(call, callee, arguments));
+  }
+
+  @Override
+  public Executor visitVarStmt(Stmt.Var stmt) {
+    Interpreter interp = interpreter;
+    Store define = define(stmt.name, stmt.isGlobal, stmt.slot,
+        stmt.isCaptured);
+    if (stmt.initializer == null) return () -> define.store(null);
+
+    Evaluator initializer = compile(stmt.initializer);
+    return () -> {
+      Object value = initializer.evaluate();
+      interp.outputResult = value;
+      define.store(value);
+    };
+  }
+
+  @Override
+  public Executor visitWhileStmt(Stmt.While stmt) {
+    Interpreter interp = interpreter;
+    Evaluator condition = compile(stmt.condition);
+    Executor body = compile(stmt.body);
+    return () -> {
+      for (;;) {
+        Object value = condition.evaluate();
+        interp.outputResult = value;
+        if (!Operators.isTruthy(value)) break;
+
+        try {
+          body.execute();
+        } catch (LoopSignal signal) {
+          if (signal == LoopSignal.BREAK) break;
+        }
+      }
+    };
+  }
+
+  @Override
+  public Executor visitForStmt(Stmt.For stmt) {
+    Interpreter interp = interpreter;
+    Executor initializer = stmt.initializer == null
+        ? null : compile(stmt.initializer);
+    Evaluator condition = compile(stmt.condition);
+    Evaluator increment = stmt.increment == null
+        ? null : compile(stmt.increment);
+    Executor body = compile(stmt.body);
+
+    return () -> {
+      if (initializer != null) initializer.execute();
+
+      for (;;) {
+        Object value = condition.evaluate();
+        interp.outputResult = value;
+        if (!Operators.isTruthy(value)) break;
+
+        try {
+          body.execute();
+        } catch (LoopSignal signal) {
+          if (signal == LoopSignal.BREAK) break;
+        }
+
+        if (increment != null) interp.outputResult = increment.evaluate();
+      }
+    };
+  }
+
+  @Override
+  public Evaluator visitAssignExpr(Expr.Assign expr) {
+    Evaluator value = compile(expr.value);
+    Store assign = assign(expr.name, expr.isGlobal, expr.isUpvalue,
+        expr.isCaptured, expr.slot);
+
+    if (expr.equals.type == TokenType.EQUAL) {
+      return () -> {
+        Object result = value.evaluate();
+        assign.store(result);
+        return result;
+      };
+    }
+
+    Evaluator current = read(expr.name, expr.isGlobal, expr.isUpvalue,
+        expr.isCaptured, expr.slot);
+    Token equals = expr.equals;
+    return () -> {
+      Object result = value.evaluate();
+      result = Operators.compound(equals, current.evaluate(), result);
+      assign.store(result);
+      return result;
+    };
+  }
+
+  @Override
+  public Evaluator visitBinaryExpr(Expr.Binary expr) {
+    Token op = expr.operator;
+    if (!isString(expr.left) && !isString(expr.right)) {
+      switch (op.type) {
+        case PLUS:
+          return arithmetic(expr, Operators::add, (a, b) -> a + b);
+        case MINUS:
+          return arithmetic(expr, Operators::subtract, (a, b) -> a - b);
+        case STAR:
+          return arithmetic(expr, Operators::multiply, (a, b) -> a * b);
+        case SLASH:
+          return arithmetic(expr, (a, b) -> Operators.divide(op, a, b),
+              (a, b) -> Operators.divide(op, a, b));
+        case MOD:
+          return arithmetic(expr, (a, b) -> Operators.modulo(op, a, b),
+              (a, b) -> Operators.modulo(op, a, b));
+      }
+    }
+
+    switch (op.type) {
+      case GREATER:
+        return compare(expr, (a, b) -> a > b, (a, b) -> a > b);
+      case GREATER_EQUAL:
+        return compare(expr, (a, b) -> a >= b, (a, b) -> a >= b);
+      case LESSER:
+        return compare(expr, (a, b) -> a < b, (a, b) -> a < b);
+      case LESSER_EQUAL:
+        return compare(expr, (a, b) -> a <= b, (a, b) -> a <= b);
+      // Same as Operators.isEqual() on doubles, like
+      // BinaryNode.DOUBLE_EQUAL.
+      case EQUAL_EQUAL:
+        return compare(expr, (a, b) -> a == b, (a, b) ->
+            Double.doubleToLongBits(a) == Double.doubleToLongBits(b));
+      case BANG_EQUAL:
+        return compare(expr, (a, b) -> a != b, (a, b) ->
+            Double.doubleToLongBits(a) != Double.doubleToLongBits(b));
+    }
+
+    Evaluator left = compile(expr.left);
+    Evaluator right = compile(expr.right);
+    return () -> {
+      Object a = left.evaluate();
+      return Operators.binary(op, a, right.evaluate());
+    };
+  }
+
+  // A string literal operand means '+' concatenates, so the number
+  // paths would only fail.
+  private static boolean isString(Expr expr) {
+    return expr instanceof Expr.Literal &&
+        ((Expr.Literal)expr).value instanceof String;
+  }
+
+  // Two integers or two doubles take the operator's fast path. Mixed
+  // numbers and operands that are not numbers go to Operators, which
+  // either handles them or reports the error.
+  private Evaluator arithmetic(Expr.Binary expr, LongOperator longs,
+                               DoubleBinaryOperator doubles) {
+    Evaluator left = compile(expr.left);
+    Evaluator right = compile(expr.right);
+    Token op = expr.operator;
+
+    return () -> {
+      Object a = left.evaluate();
+      Object b = right.evaluate();
+      if (a instanceof Long && b instanceof Long) {
+        return longs.apply((long)a, (long)b);
+      }
+      if (a instanceof Double && b instanceof Double) {
+        return doubles.applyAsDouble((double)a, (double)b);
+      }
+      return Operators.binary(op, a, b);
+    };
+  }
+
+  private Evaluator compare(Expr.Binary expr, LongComparison longs,
+                            DoubleComparison doubles) {
+    Evaluator left = compile(expr.left);
+    Evaluator right = compile(expr.right);
+    Token op = expr.operator;
+
+    return () -> {
+      Object a = left.evaluate();
+      Object b = right.evaluate();
+      if (a instanceof Long && b instanceof Long) {
+        return longs.test((long)a, (long)b);
+      }
+      if (a instanceof Double && b instanceof Double) {
+        return doubles.test((double)a, (double)b);
+      }
+      return Operators.binary(op, a, b);
+    };
+  }
+
+  @Override
+  public Evaluator visitTernaryExpr(Expr.Ternary expr) {
+    Evaluator condition = compile(expr.condition);
+    Evaluator thenBranch = compile(expr.thenBranch);
+    Evaluator elseBranch = compile(expr.elseBranch);
+    return () -> Operators.isTruthy(condition.evaluate())
+        ? thenBranch.evaluate() : elseBranch.evaluate();
+  }
+
+  @Override
+  public Evaluator visitCallExpr(Expr.Call expr) {
+    Interpreter interp = interpreter;
+    Evaluator[] arguments = compileAll(expr.arguments);
+    if (expr.callee instanceof Expr.Get) return invoke(expr, arguments);
+
+    Evaluator callee = compile(expr.callee);
+    return () -> {
+      Object function = callee.evaluate();
+      return interp.callFunction(expr, function, arguments(arguments));
+    };
+  }
+
+  // obj.method(args), without creating a bound method.
+  private Evaluator invoke(Expr.Call expr, Evaluator[] arguments) {
+    Interpreter interp = interpreter;
+    Expr.Get get = (Expr.Get)expr.callee;
+    Evaluator object = compile(get.object);
+    Token name = get.name;
+    InlineCache cache = expr.cache;
+
+    return () -> {
+      LoxInstance receiver = instance(object.evaluate(), name);
+      Object callee = receiver.getForInvoke(name, cache);
+      List<Object> values = arguments(arguments);
+
+      if (callee instanceof LoxFunction &&
+          ((LoxFunction)callee).isUnboundMethod()) {
+        LoxFunction method = (LoxFunction)callee;
+        interp.checkArity(expr, method, values);
+        return method.invoke(interp, receiver, values);
+      }
+
+      return interp.callFunction(expr, callee, values);
+    };
+  }
+
+  private static List<Object> arguments(Evaluator[] arguments) {
+    List<Object> values = new ArrayList<>(arguments.length);
+    for (Evaluator argument : arguments) values.add(argument.evaluate());
+    return values;
+  }
+
+  @Override
+  public Evaluator visitGetExpr(Expr.Get expr) {
+    Evaluator object = compile(expr.object);
+    Token name = expr.name;
+    InlineCache cache = expr.cache;
+    return () -> instance(object.evaluate(), name).get(name, cache);
+  }
+
+  private static LoxInstance instance(Object object, Token name) {
+    if (object instanceof LoxInstance) return (LoxInstance)object;
+
+    throw new RuntimeError(name, "Only instances have properties.");
+  }
+
+  @Override
+  public Evaluator visitFunctionExpr(Expr.Function expr) {
+    Interpreter interp = interpreter;
+    return () -> new LoxFunction(null, expr, interp.capture(expr), false);
+  }
+
+  @Override
+  public Evaluator visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Evaluator visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    return () -> value;
+  }
+
+  @Override
+  public Evaluator visitLogicalExpr(Expr.Logical expr) {
+    Evaluator left = compile(expr.left);
+    Evaluator right = compile(expr.right);
+
+    if (expr.operator.type == TokenType.OR) {
+      return () -> {
+        Object value = left.evaluate();
+        return Operators.isTruthy(value) ? value : right.evaluate();
+      };
+    }
+
+    return () -> {
+      Object value = left.evaluate();
+      return Operators.isTruthy(value) ? right.evaluate() : value;
+    };
+  }
+
+  @Override
+  public Evaluator visitSetExpr(Expr.Set expr) {
+    Evaluator object = compile(expr.object);
+    Evaluator value = compile(expr.value);
+    Token name = expr.name;
+    InlineCache cache = expr.cache;
+
+    return () -> {
+      Object instance = object.evaluate();
+      if (!(instance instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have fields.");
+      }
+
+      Object result = value.evaluate();
+      ((LoxInstance)instance).set(name, result, cache);
+      return result;
+    };
+  }
+
+  @Override
+  public Evaluator visitSuperExpr(Expr.Super expr) {
+    Interpreter interp = interpreter;
+    // Methods are closures, so "super" is always an upvalue.
+    int slot = expr.slot;
+    Evaluator receiver = visitThisExpr(expr.receiver);
+    Token method = expr.method;
+
+    return () -> {
+      LoxClass superclass = (LoxClass)interp.upvalues[slot].value;
+      LoxInstance object = (LoxInstance)receiver.evaluate();
+
+      LoxFunction function = superclass.findMethod(method.symbol);
+      if (function == null) {
+        throw new RuntimeError(method,
+            "Undefined property '" + method.lexeme() + "'.");
+      }
+
+      return function.bind(object);
+    };
+  }
+
+  @Override
+  public Evaluator visitThisExpr(Expr.This expr) {
+    return read(expr.keyword, false, expr.isUpvalue, expr.isCaptured,
+        expr.slot);
+  }
+
+  @Override
+  public Evaluator visitUnaryExpr(Expr.Unary expr) {
+    Token op = expr.operator;
+    Evaluator right = compile(expr.right);
+    switch (op.type) {
+      case MINUS:
+        return () -> {
+          Object value = right.evaluate();
+          if (value instanceof Long) {
+            return Operators.subtract(0, (long)value);
+          }
+          if (value instanceof Double) return -(double)value;
+          return Operators.unary(op, value);
+        };
+
+      case MINUS_MINUS:
+      case PLUS_PLUS:
+        return increment(expr, right);
+
+      case BANG:
+        return () -> !Operators.isTruthy(right.evaluate());
+
+      default:
+        return () -> Operators.unary(op, right.evaluate());
+    }
+  }
+
+  // Prefix and postfix ++ and --, which assign their variable.
+  private Evaluator increment(Expr.Unary expr, Evaluator right) {
+    Token op = expr.operator;
+    if (!(expr.right instanceof Expr.Variable)) {
+      return () -> {
+        right.evaluate();
+        throw new RuntimeError(op,
+            "Operand of a decrement operator must be a variable.");
+      };
+    }
+
+    Expr.Variable variable = (Expr.Variable)expr.right;
+    Store assign = assign(variable.name, variable.isGlobal,
+        variable.isUpvalue, variable.isCaptured, variable.slot);
+    long delta = op.type == TokenType.PLUS_PLUS ? 1 : -1;
+    boolean isPostfix = expr.isPostfix;
+
+    return () -> {
+      Object value = right.evaluate();
+      Operators.checkNumberOperand(op, value);
+      Object result = Operators.increment(value, delta);
+      assign.store(result);
+      return isPostfix ? value : result;
+    };
+  }
+
+  @Override
+  public Evaluator visitVariableExpr(Expr.Variable expr) {
+    return read(expr.name, expr.isGlobal, expr.isUpvalue, expr.isCaptured,
+        expr.slot);
+  }
+
+  // Reads a variable from where the Resolver put it. A global links to
+  // its cell now, so running the code does no name lookup.
+  private Evaluator read(Token name, boolean isGlobal, boolean isUpvalue,
+                         boolean isCaptured, int slot) {
+    Interpreter interp = interpreter;
+    if (isGlobal) {
+      Environment.Cell cell = interp.globals.cell(name.symbol);
+      return () -> cell.get(name);
+    }
+    if (isUpvalue) return () -> interp.upvalues[slot].value;
+    if (isCaptured) {
+      return () -> ((Environment.Cell)interp.stack[interp.fp + slot]).value;
+    }
+    return () -> interp.stack[interp.fp + slot];
+  }
+
+  private Store assign(Token name, boolean isGlobal, boolean isUpvalue,
+                       boolean isCaptured, int slot) {
+    Interpreter interp = interpreter;
+    if (isGlobal) {
+      Environment.Cell cell = interp.globals.cell(name.symbol);
+      return value -> cell.assign(name, value);
+    }
+    if (isUpvalue) return value -> interp.upvalues[slot].value = value;
+    if (isCaptured) {
+      return value ->
+          ((Environment.Cell)interp.stack[interp.fp + slot]).value = value;
+    }
+    return value -> interp.stack[interp.fp + slot] = value;
+  }
+
+  // Defines a variable. A captured local gets a new cell each time, as
+  // in Interpreter.defineVariable().
+  private Store define(Token name, boolean isGlobal, int slot,
+                       boolean isCaptured) {
+    Interpreter interp = interpreter;
+    if (isGlobal) {
+      Environment.Cell cell = interp.globals.cell(name.symbol);
+      return value -> {
+        cell.value = value;
+        cell.isDefined = true;
+      };
+    }
+    if (isCaptured) {
+      return value ->
+          interp.stack[interp.fp + slot] = Environment.Cell.local(value);
+    }
+    return value -> interp.stack[interp.fp + slot] = value;
+  }
+}
@@ -0,0 +1,745 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles the resolved syntax tree into bytecode for the VM.
+// Local variables live in stack slots and captured variables become
+// upvalues, so the VM never looks a local variable up by name.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+  private enum FunctionType {
+    SCRIPT,
+    FUNCTION,
+    METHOD,
+    INITIALIZER
+  }
+
+  private static class Local {
+    final String name;
+    // Scope depth, or -1 while the variable is being initialized.
+    int depth;
+    boolean isCaptured = false;
+
+    Local(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class Upvalue {
+    final int index;
+    final boolean isLocal;
+
+    Upvalue(int index, boolean isLocal) {
+      this.index = index;
+      this.isLocal = isLocal;
+    }
+  }
+
+  private static class Loop {
+    final Loop enclosing;
+    final int start;
+    final int scopeDepth;
+    final List<Integer> breakJumps = new ArrayList<>();
+
+    Loop(Loop enclosing, int start, int scopeDepth) {
+      this.enclosing = enclosing;
+      this.start = start;
+      this.scopeDepth = scopeDepth;
+    }
+  }
+
+  private static class FunctionState {
+    final FunctionState enclosing;
+    final VmFunction function;
+    final FunctionType type;
+    final List<Local> locals = new ArrayList<>();
+    final List<Upvalue> upvalues = new ArrayList<>();
+    int scopeDepth = 0;
+    Loop loop;
+    int maxLocals = 1;
+    int exprDepth = 0;
+    int maxExprDepth = 0;
+
+    FunctionState(FunctionState enclosing, VmFunction function,
+                  FunctionType type) {
+      this.enclosing = enclosing;
+      this.function = function;
+      this.type = type;
+    }
+  }
+
+  private static final int MAX_SLOTS = 256;
+  private static final int MAX_JUMP = 0xffff;
+
+  private FunctionState current;
+  // Token of the source being compiled, recorded in the line table.
+  private Token token;
+
+  VmFunction compile(List<Stmt> statements) {
+    current = new FunctionState(null, new VmFunction("script", 0),
+        FunctionType.SCRIPT);
+    current.locals.add(new Local("", 0));
+
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+
+    return endFunction();
+  }
+
+  private VmFunction endFunction() {
+    emitReturn();
+
+    VmFunction function = current.function;
+    function.upvalueCount = current.upvalues.size();
+    // Every nesting level of an expression keeps at most a callee and
+    // its arguments on the stack.
+    function.maxStack = current.maxLocals +
+        9 * (current.maxExprDepth + 1) + 4;
+    function.chunk.trim();
+
+    current = current.enclosing;
+    return function;
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    current.exprDepth++;
+    if (current.exprDepth > current.maxExprDepth) {
+      current.maxExprDepth = current.exprDepth;
+    }
+    expr.accept(this);
+    current.exprDepth--;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    token = stmt.keyword;
+    boolean isBreak = stmt.keyword.type == TokenType.BREAK;
+    Loop loop = current.loop;
+
+    if (loop == null) {
+      String msg = isBreak ? "Error: Break must with while loop" :
+          "Error: Continue must with while loop";
+      emitOp(OpCode.THROW);
+      emitShort(makeConstant(msg));
+      return null;
+    }
+
+    // Discard the locals of the scopes we are jumping out of.
+    for (int i = current.locals.size() - 1; i >= 0; i--) {
+      Local local = current.locals.get(i);
+      if (local.depth <= loop.scopeDepth) break;
+      emitOp(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+    }
+
+    if (isBreak) {
+      loop.breakJumps.add(emitJump(OpCode.JUMP));
+    } else {
+      emitLoop(loop.start);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    token = stmt.name;
+    int nameConstant = nameConstant(stmt.name);
+    declareVariable(stmt.name.lexeme());
+
+    emitOp(OpCode.CLASS);
+    emitShort(nameConstant);
+    defineVariable(stmt.name.lexeme(), nameConstant);
+
+    if (stmt.superclass != null) {
+      compile(stmt.superclass);
+      emitResult();
+
+      beginScope();
+      addLocal("super");
+      markInitialized();
+
+      namedVariable(stmt.name, true);
+      token = stmt.superclass.name;
+      emitOp(OpCode.INHERIT);
+    }
+
+    namedVariable(stmt.name, true);
+    for (Stmt.Function method : stmt.methods) {
+      token = method.name;
+      FunctionType type = FunctionType.METHOD;
+      if (method.name.lexeme().equals("init")) {
+        type = FunctionType.INITIALIZER;
+      }
+      function(method.function, method.name.lexeme(), type);
+      token = method.name;
+      emitOp(OpCode.METHOD);
+      emitShort(nameConstant(method.name));
+    }
+    emitOp(OpCode.POP);
+
+    if (stmt.superclass != null) endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    emitResult();
+    emitOp(OpCode.POP);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    token = stmt.name;
+    int nameConstant = nameConstant(stmt.name);
+    declareVariable(stmt.name.lexeme());
+    // A function can refer to itself as soon as it is declared.
+    markInitialized();
+    function(stmt.function, stmt.name.lexeme(), FunctionType.FUNCTION);
+    defineVariable(stmt.name.lexeme(), nameConstant);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+    emitResult();
+    int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+    compile(stmt.thenBranch);
+
+    if (stmt.elseBranch == null) {
+      patchJump(thenJump);
+      return null;
+    }
+
+    int elseJump = emitJump(OpCode.JUMP);
+    patchJump(thenJump);
+    compile(stmt.elseBranch);
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emitOp(OpCode.PRINT);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    token = stmt.keyword;
+    if (stmt.value == null) {
+      emitReturn();
+      return null;
+    }
+
+    if (stmt.isTailCall) {
+      call((Expr.Call)stmt.value, OpCode.TAIL_CALL);
+    } else {
+      compile(stmt.value);
+    }
+    token = stmt.keyword;
+    emitOp(OpCode.RETURN);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    token = stmt.name;
+    int nameConstant = nameConstant(stmt.name);
+
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+      emitResult();
+    } else {
+      emitOp(OpCode.NIL);
+    }
+
+    token = stmt.name;
+    declareVariable(stmt.name.lexeme());
+    defineVariable(stmt.name.lexeme(), nameConstant);
+    return null;
+  }
+
+  // The increment is compiled ahead of the body, so 'continue' can
+  // jump back to it like to the start of a while loop.
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    beginScope();
+    if (stmt.initializer != null) compile(stmt.initializer);
+
+    int conditionStart = current.function.chunk.count;
+    compile(stmt.condition);
+    emitResult();
+    int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+
+    int loopStart = conditionStart;
+    if (stmt.increment != null) {
+      int bodyJump = emitJump(OpCode.JUMP);
+      loopStart = current.function.chunk.count;
+      compile(stmt.increment);
+      emitResult();
+      emitOp(OpCode.POP);
+      emitLoop(conditionStart);
+      patchJump(bodyJump);
+    }
+
+    current.loop = new Loop(current.loop, loopStart, current.scopeDepth);
+    compile(stmt.body);
+    emitLoop(loopStart);
+
+    patchJump(exitJump);
+    for (int jump : current.loop.breakJumps) {
+      patchJump(jump);
+    }
+    current.loop = current.loop.enclosing;
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = current.function.chunk.count;
+    current.loop = new Loop(current.loop, loopStart, current.scopeDepth);
+
+    compile(stmt.condition);
+    emitResult();
+    int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+    compile(stmt.body);
+    emitLoop(loopStart);
+
+    patchJump(exitJump);
+    for (int jump : current.loop.breakJumps) {
+      patchJump(jump);
+    }
+    current.loop = current.loop.enclosing;
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+
+    if (expr.equals.type != TokenType.EQUAL) {
+      namedVariable(expr.name, true);
+      token = expr.equals;
+      emitOp(OpCode.COMPOUND);
+    }
+
+    namedVariable(expr.name, false);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+
+    // Adding: comma operator
+    if (expr.operator.type == TokenType.COMMA) {
+      emitOp(OpCode.POP);
+      compile(expr.right);
+      return null;
+    }
+
+    compile(expr.right);
+    token = expr.operator;
+    switch (expr.operator.type) {
+      case EQUAL_EQUAL:   emitOp(OpCode.EQUAL); break;
+      case BANG_EQUAL:    emitOp(OpCode.NOT_EQUAL); break;
+      case GREATER:       emitOp(OpCode.GREATER); break;
+      case GREATER_EQUAL: emitOp(OpCode.GREATER_EQUAL); break;
+      case LESSER:        emitOp(OpCode.LESS); break;
+      case LESSER_EQUAL:  emitOp(OpCode.LESS_EQUAL); break;
+      case PLUS:          emitOp(OpCode.ADD); break;
+      case MINUS:         emitOp(OpCode.SUBTRACT); break;
+      case STAR:          emitOp(OpCode.MULTIPLY); break;
+      case SLASH:         emitOp(OpCode.DIVIDE); break;
+      case MOD:           emitOp(OpCode.MODULO); break;
+      case EXP:           emitOp(OpCode.POWER); break;
+      case BIT_AND:       emitOp(OpCode.BIT_AND); break;
+      case BIT_OR:        emitOp(OpCode.BIT_OR); break;
+      case BIT_XOR:       emitOp(OpCode.BIT_XOR); break;
+      case BIT_LEFT:      emitOp(OpCode.SHIFT_LEFT); break;
+      case BIT_RIGHT:     emitOp(OpCode.SHIFT_RIGHT); break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitTernaryExpr(Expr.Ternary expr) {
+    compile(expr.condition);
+    int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+    compile(expr.thenBranch);
+    int endJump = emitJump(OpCode.JUMP);
+    patchJump(elseJump);
+    compile(expr.elseBranch);
+    patchJump(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    call(expr, OpCode.CALL);
+    return null;
+  }
+
+  private void call(Expr.Call expr, byte op) {
+    compile(expr.callee);
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+
+    token = expr.paren;
+    emitOp(op);
+    emitByte(expr.arguments.size());
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    token = expr.name;
+    emitOp(OpCode.GET_PROPERTY);
+    emitShort(nameConstant(expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    function(expr, null, FunctionType.FUNCTION);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emitOp(OpCode.NIL);
+    } else if (expr.value.equals(true)) {
+      emitOp(OpCode.TRUE);
+    } else if (expr.value.equals(false)) {
+      emitOp(OpCode.FALSE);
+    } else {
+      emitOp(OpCode.CONSTANT);
+      emitShort(makeConstant(expr.value));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+    int endJump = emitJump(expr.operator.type == TokenType.OR ?
+        OpCode.JUMP_IF_TRUE_OR_POP : OpCode.JUMP_IF_FALSE_OR_POP);
+    compile(expr.right);
+    patchJump(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+    token = expr.name;
+    emitOp(OpCode.SET_PROPERTY);
+    emitShort(nameConstant(expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    namedVariable(new Token(TokenType.THIS, "this", null,
+        expr.keyword.line, expr.keyword.col), true);
+    namedVariable(expr.keyword, true);
+    token = expr.method;
+    emitOp(OpCode.GET_SUPER);
+    emitShort(nameConstant(expr.method));
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    namedVariable(expr.keyword, true);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    TokenType type = expr.operator.type;
+
+    if (type == TokenType.PLUS_PLUS || type == TokenType.MINUS_MINUS) {
+      compile(expr.right);
+      token = expr.operator;
+      if (!(expr.right instanceof Expr.Variable)) {
+        emitOp(OpCode.POP);
+        emitOp(OpCode.THROW);
+        emitShort(makeConstant(
+            "Operand of a decrement operator must be a variable."));
+        return null;
+      }
+
+      // Postfix operators keep the old value under the new one.
+      if (expr.isPostfix) emitOp(OpCode.DUP);
+      token = expr.operator;
+      emitOp(type == TokenType.PLUS_PLUS ?
+          OpCode.INCREMENT : OpCode.DECREMENT);
+      namedVariable(((Expr.Variable)expr.right).name, false);
+      if (expr.isPostfix) emitOp(OpCode.POP);
+      return null;
+    }
+
+    compile(expr.right);
+    token = expr.operator;
+    switch (type) {
+      case BANG:    emitOp(OpCode.NOT); break;
+      case MINUS:   emitOp(OpCode.NEGATE); break;
+      case PLUS:    emitOp(OpCode.UNARY_PLUS); break;
+      case BIT_NOT: emitOp(OpCode.BIT_NOT); break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    namedVariable(expr.name, true);
+    return null;
+  }
+
+  private void function(Expr.Function declaration, String name,
+                        FunctionType type) {
+    FunctionState enclosing = current;
+    current = new FunctionState(enclosing,
+        new VmFunction(name, declaration.params.size()), type);
+
+    // Slot zero holds the receiver in methods, the closure otherwise.
+    current.locals.add(
+        new Local(type == FunctionType.FUNCTION ? "" : "this", 0));
+    beginScope();
+    for (Token param : declaration.params) {
+      token = param;
+      addLocal(param.lexeme());
+      markInitialized();
+    }
+
+    for (Stmt statement : declaration.body) {
+      compile(statement);
+    }
+
+    List<Upvalue> upvalues = current.upvalues;
+    VmFunction function = endFunction();
+
+    emitOp(OpCode.CLOSURE);
+    emitShort(makeConstant(function));
+    for (Upvalue upvalue : upvalues) {
+      emitByte(upvalue.isLocal ? 1 : 0);
+      emitByte(upvalue.index);
+    }
+  }
+
+  private void namedVariable(Token name, boolean isGet) {
+    token = name;
+    int arg = resolveLocal(current, name.lexeme());
+    if (arg != -1) {
+      emitOp(isGet ? OpCode.GET_LOCAL : OpCode.SET_LOCAL);
+      emitByte(arg);
+      return;
+    }
+
+    arg = resolveUpvalue(current, name.lexeme());
+    if (arg != -1) {
+      emitOp(isGet ? OpCode.GET_UPVALUE : OpCode.SET_UPVALUE);
+      emitByte(arg);
+      return;
+    }
+
+    emitOp(isGet ? OpCode.GET_GLOBAL : OpCode.SET_GLOBAL);
+    emitShort(nameConstant(name));
+  }
+
+  private int resolveLocal(FunctionState state, String name) {
+    for (int i = state.locals.size() - 1; i >= 0; i--) {
+      Local local = state.locals.get(i);
+      if (local.depth != -1 && local.name.equals(name)) return i;
+    }
+
+    return -1;
+  }
+
+  private int resolveUpvalue(FunctionState state, String name) {
+    if (state.enclosing == null) return -1;
+
+    int local = resolveLocal(state.enclosing, name);
+    if (local != -1) {
+      state.enclosing.locals.get(local).isCaptured = true;
+      return addUpvalue(state, local, true);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name);
+    if (upvalue != -1) {
+      return addUpvalue(state, upvalue, false);
+    }
+
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+    for (int i = 0; i < state.upvalues.size(); i++) {
+      Upvalue upvalue = state.upvalues.get(i);
+      if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+    }
+
+    if (state.upvalues.size() == MAX_SLOTS) {
+      Lox.error(token, "Too many closure variables in function.");
+      return 0;
+    }
+
+    state.upvalues.add(new Upvalue(index, isLocal));
+    return state.upvalues.size() - 1;
+  }
+
+  private void declareVariable(String name) {
+    // Global variables are bound late, by name.
+    if (current.scopeDepth == 0) return;
+    addLocal(name);
+  }
+
+  private void defineVariable(String name, int nameConstant) {
+    if (current.scopeDepth > 0) {
+      markInitialized();
+      return;
+    }
+
+    emitOp(OpCode.DEFINE_GLOBAL);
+    emitShort(nameConstant);
+  }
+
+  private void addLocal(String name) {
+    if (current.locals.size() == MAX_SLOTS) {
+      Lox.error(token, "Too many local variables in function.");
+      return;
+    }
+
+    // Declared, but not usable until markInitialized().
+    current.locals.add(new Local(name, -1));
+    if (current.locals.size() > current.maxLocals) {
+      current.maxLocals = current.locals.size();
+    }
+  }
+
+  private void markInitialized() {
+    if (current.scopeDepth == 0) return;
+    current.locals.get(current.locals.size() - 1).depth =
+        current.scopeDepth;
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+
+    List<Local> locals = current.locals;
+    while (!locals.isEmpty() &&
+           locals.get(locals.size() - 1).depth > current.scopeDepth) {
+      Local local = locals.remove(locals.size() - 1);
+      emitOp(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+    }
+  }
+
+  // At the top level, remember the value of each statement for the
+  // implicit display of the result.
+  private void emitResult() {
+    if (current.type == FunctionType.SCRIPT) emitOp(OpCode.RESULT);
+  }
+
+  private void emitReturn() {
+    if (current.type == FunctionType.INITIALIZER) {
+      emitOp(OpCode.GET_LOCAL);
+      emitByte(0);
+    } else {
+      emitOp(OpCode.NIL);
+    }
+
+    emitOp(OpCode.RETURN);
+  }
+
+  // Names are kept as their symbol ids, which is what the VM's tables
+  // of globals, fields and methods are keyed by.
+  private int nameConstant(Token name) {
+    return makeConstant(name.symbol);
+  }
+
+  private int makeConstant(Object value) {
+    int constant = current.function.chunk.addConstant(value);
+    if (constant > MAX_JUMP) {
+      Lox.error(token, "Too many constants in one chunk.");
+      return 0;
+    }
+
+    return constant;
+  }
+
+  private void emitOp(byte op) {
+    current.function.chunk.write(op, token);
+  }
+
+  private void emitByte(int value) {
+    current.function.chunk.write((byte)value, token);
+  }
+
+  private void emitShort(int value) {
+    emitByte((value >> 8) & 0xff);
+    emitByte(value & 0xff);
+  }
+
+  private int emitJump(byte op) {
+    emitOp(op);
+    emitShort(0xffff);
+    return current.function.chunk.count - 2;
+  }
+
+  private void patchJump(int offset) {
+    Chunk chunk = current.function.chunk;
+    // -2 to adjust for the bytecode for the jump offset itself.
+    int jump = chunk.count - offset - 2;
+    if (jump > MAX_JUMP) {
+      Lox.error(token, "Too much code to jump over.");
+    }
+
+    chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+    chunk.code[offset + 1] = (byte)(jump & 0xff);
+  }
+
+  private void emitLoop(int loopStart) {
+    emitOp(OpCode.LOOP);
+
+    int offset = current.function.chunk.count - loopStart + 2;
+    if (offset > MAX_JUMP) Lox.error(token, "Loop body too large.");
+
+    emitShort(offset);
+  }
+
+}
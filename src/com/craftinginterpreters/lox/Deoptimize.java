@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by compiled code when it meets something it was not compiled
+// for, such as a division by zero or a function ending without
+// returning a number. Compiled code has no side effects, so the call
+// that entered it can be run again in the interpreter, which then
+// gives the right result or error.
+class Deoptimize extends RuntimeException {
+  static final Deoptimize SIGNAL = new Deoptimize();
+
+  private Deoptimize() {
+    super(null, null, false, false);
+  }
+}
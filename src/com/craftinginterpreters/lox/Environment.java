@@ -1,68 +1,99 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class Environment {
 
-  final Environment enclosing;
-
-  public final Map<String, Object> values = new HashMap<>();
+  // A global variable. Each name gets a single cell, which nodes that
+  // refer to it can hold on to instead of looking the name up again.
+  // Local variables captured by closures are kept in cells too, shared
+  // by the frame declaring them and the closures using them.
+  static class Cell {
+    final String name;
+    Object value;
+    boolean isDefined = false;
+
+    private Cell(String name) {
+      this.name = name;
+    }
 
-  Environment() {
-    enclosing = null;
-  }
+    // A captured local, which exists only once it is defined.
+    static Cell local(Object value) {
+      Cell cell = new Cell(null);
+      cell.value = value;
+      cell.isDefined = true;
+      return cell;
+    }
 
-  Environment(Environment enclosing) {
-    this.enclosing = enclosing;
-  }
+    Object get(Token name) {
+      if (isDefined) return value;
 
-  Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
+      throw new RuntimeError(name,
+          "Undefined variable '" + name.lexeme() + "'.");
     }
 
-    if (enclosing != null) return enclosing.get(name);
-
-    throw new RuntimeError(name,
-        "Undefined variable '" + name.lexeme + "'.");
-  }
+    void assign(Token name, Object value) {
+      if (isDefined) {
+        this.value = value;
+        return;
+      }
 
-  void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-      return;
+      throw new RuntimeError(name,
+          "Undefined variable '" + name.lexeme() + "'.");
     }
+  }
 
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-      return;
+  // Global variables, indexed by symbol. Symbol ids are dense, so
+  // this is a plain array. The JIT thread reads it too: the array is
+  // only replaced by a larger copy, never changed in place past the
+  // cells it holds.
+  volatile Cell[] cells = new Cell[64];
+
+  // Returns the cell for a global, creating an undefined one the
+  // first time the name is seen.
+  Cell cell(int symbol) {
+    Cell[] cells = this.cells;
+    if (symbol < cells.length && cells[symbol] != null) {
+      return cells[symbol];
     }
-
-    throw new RuntimeError(name,
-        "Undefined variable '" + name.lexeme + "'.");
+    return add(symbol);
   }
 
-  void define(String name, Object value) {
-    values.put(name, value);
+  // Returns the cell for a global, or null if nothing created it.
+  Cell find(int symbol) {
+    Cell[] cells = this.cells;
+    return symbol < cells.length ? cells[symbol] : null;
   }
 
-  Environment ancestor(int distance) {
-    Environment environment = this;
-    for (int i = 0; i < distance; i++) {
-      environment = environment.enclosing; 
+  private synchronized Cell add(int symbol) {
+    Cell[] cells = this.cells;
+    if (symbol >= cells.length) {
+      cells = Arrays.copyOf(cells,
+          Math.max(cells.length * 2, symbol + 1));
+    }
+    if (cells[symbol] == null) {
+      cells[symbol] = new Cell(Symbols.name(symbol));
     }
+    this.cells = cells;
+    return cells[symbol];
+  }
+
+  Object get(Token name) {
+    return cell(name.symbol).get(name);
+  }
 
-    return environment;
+  void assign(Token name, Object value) {
+    cell(name.symbol).assign(name, value);
   }
 
-  Object getAt(int distance, String name) {
-    return ancestor(distance).values.get(name);
+  void define(String name, Object value) {
+    define(Symbols.intern(name), value);
   }
 
-  void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
+  void define(int symbol, Object value) {
+    Cell cell = cell(symbol);
+    cell.value = value;
+    cell.isDefined = true;
   }
 
 }
-
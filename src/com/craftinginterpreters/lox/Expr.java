@@ -33,6 +33,13 @@ abstract class Expr {
     final Token name;
     final Token equals;
     final Expr value;
+
+    // Filled in after parsing.
+    int slot;
+    boolean isGlobal = true;
+    boolean isCaptured;
+    boolean isUpvalue;
+    Environment.Cell cell;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -48,6 +55,9 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    // Filled in after parsing.
+    BinaryNode node;
   }
   static class Ternary extends Expr {
     Ternary(Expr condition, Expr thenBranch, Expr elseBranch) {
@@ -78,6 +88,9 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    // Filled in after parsing.
+    InlineCache cache = new InlineCache(InlineCache.Kind.CALL);
   }
   static class Get extends Expr {
     Get(Expr object, Token name) {
@@ -91,6 +104,9 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    // Filled in after parsing.
+    InlineCache cache = new InlineCache(InlineCache.Kind.GET);
   }
   static class Function extends Expr {
     Function(List<Token> params, List<Stmt> body) {
@@ -104,6 +120,14 @@ abstract class Expr {
 
     final List<Token> params;
     final List<Stmt> body;
+
+    // Filled in after parsing.
+    int slotCount;
+    boolean[] capturedParams;
+    boolean[] upvalueIsLocal;
+    int[] upvalueIndexes;
+    ClosureCompiler.Executor code;
+    volatile LazyBody lazy;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -156,6 +180,9 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    // Filled in after parsing.
+    InlineCache cache = new InlineCache(InlineCache.Kind.SET);
   }
   static class Super extends Expr {
     Super(Token keyword, Token method) {
@@ -169,6 +196,13 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+
+    // Filled in after parsing.
+    int slot;
+    boolean isGlobal = true;
+    boolean isCaptured;
+    boolean isUpvalue;
+    Expr.This receiver;
   }
   static class This extends Expr {
     This(Token keyword) {
@@ -180,6 +214,12 @@ abstract class Expr {
     }
 
     final Token keyword;
+
+    // Filled in after parsing.
+    int slot;
+    boolean isGlobal = true;
+    boolean isCaptured;
+    boolean isUpvalue;
   }
   static class Unary extends Expr {
     Unary(Token operator, Expr right, Boolean isPostfix) {
@@ -195,6 +235,9 @@ abstract class Expr {
     final Token operator;
     final Expr right;
     final Boolean isPostfix;
+
+    // Filled in after parsing.
+    UnaryNode node;
   }
   static class Variable extends Expr {
     Variable(Token name) {
@@ -206,6 +249,13 @@ abstract class Expr {
     }
 
     final Token name;
+
+    // Filled in after parsing.
+    int slot;
+    boolean isGlobal = true;
+    boolean isCaptured;
+    boolean isUpvalue;
+    Environment.Cell cell;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,60 @@
+package com.craftinginterpreters.lox;
+
+// A polymorphic inline cache for one property or call site.
+// It remembers what the lookup found for the last few receiver
+// classes seen at the site. A site with one class is monomorphic; past
+// SIZE classes it is megamorphic and new classes are no longer added.
+class InlineCache {
+  enum Kind {
+    GET,
+    SET,
+    CALL
+  }
+
+  static final int SIZE = 4;
+
+  private final Kind kind;
+  private final Object[] keys = new Object[SIZE];
+  private final Object[] values = new Object[SIZE];
+  private int count = 0;
+
+  // Totals for all sites of each kind, printed by --cache-stats. Only
+  // counted with it, to keep the shared writes off the lookups.
+  static boolean isCounting = false;
+  private static final long[] hits = new long[Kind.values().length];
+  private static final long[] misses = new long[Kind.values().length];
+
+  InlineCache(Kind kind) {
+    this.kind = kind;
+  }
+
+  // Returns what was cached for 'key', or null on a miss.
+  Object lookup(Object key) {
+    for (int i = 0; i < count; i++) {
+      if (keys[i] == key) {
+        if (isCounting) hits[kind.ordinal()]++;
+        return values[i];
+      }
+    }
+
+    if (isCounting) misses[kind.ordinal()]++;
+    return null;
+  }
+
+  void add(Object key, Object value) {
+    if (count == SIZE) return;
+
+    keys[count] = key;
+    values[count] = value;
+    count++;
+  }
+
+  static void printStats() {
+    System.err.println("Inline caches:");
+    for (Kind kind : Kind.values()) {
+      System.err.println("  " + kind.name().toLowerCase() +
+          ": " + hits[kind.ordinal()] + " hits, " +
+          misses[kind.ordinal()] + " misses");
+    }
+  }
+}
@@ -1,16 +1,36 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Stack;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
+  private static final Environment.Cell[] NO_UPVALUES =
+      new Environment.Cell[0];
+
   final Environment globals = new Environment();
-  private final Map<Expr, Integer> locals = new HashMap<>();
-  private Environment environment = globals;
+
+  // Local variables live in frames on this stack, in the slots given
+  // by the Resolver. A frame starts at 'fp' and ends at 'frameTop'.
+  // The slot of a variable captured by a closure holds its cell.
+  Object[] stack = new Object[256];
+  int fp = 0;
+  private int frameTop = 0;
+
+  // The cells of the outer variables used by the running function.
+  Environment.Cell[] upvalues = NO_UPVALUES;
+
+  // Set for --engine=closure: statements then run as closures compiled
+  // from the AST instead of through the visitor methods.
+  ClosureCompiler closureCompiler;
+
+  // The pending tail call, for LoxFunction.call() to pick up when it
+  // catches TailCall.SIGNAL.
+  LoxFunction tailCallee;
+  LoxInstance tailReceiver;
+  List<Object> tailArguments;
 
 
   Object outputResult;
@@ -19,20 +39,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   String classTitle = "Interpreter: ";
 
   Interpreter() {
-    globals.define("clock", new LoxCallable() {
-      @Override
-      public int arity() { return 0; }
-
-      @Override
-      public Object call(Interpreter interpreter,
-                         List<Object> arguments) {
-        return (double)System.currentTimeMillis() / 1000.0;
-      }
-
-      @Override
-      public String toString() { return "<native fn>"; }
-    });
-
+    globals.define("clock", new Clock());
     globals.define("println", new Println());
     globals.define("readln", new Readln());
 
@@ -50,7 +57,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     name = name.substring(name.lastIndexOf(".") +1);
     return name;
   }
-  void interpret(List<Stmt> statements) {
+  // 'frameSize' is the number of slots used by blocks at the top
+  // level of the script.
+  void interpret(List<Stmt> statements, int frameSize) {
     String name = "";
     /*
    // debug("\n" + classTitle);
@@ -63,28 +72,48 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
     */
 
+    if (runScript(statements, frameSize)) finishScript();
+  }
 
+  // Runs top-level statements, which may be all of a script or, with
+  // --stream, one declaration of it at a time. Returns false if a
+  // runtime error stopped them.
+  boolean runScript(List<Stmt> statements, int frameSize) {
     try {
-      for (Stmt statement : statements) {
-        execute(statement);
+      fp = 0;
+      frameTop = frameSize;
+      upvalues = NO_UPVALUES;
+      ensureStack();
+      Arrays.fill(stack, null);
+      if (closureCompiler != null) {
+        closureCompiler.compile(statements).execute();
+      } else {
+        for (Stmt statement : statements) {
+          execute(statement);
+        }
       }
-      
-      // whether no print statement 
-      if (!isPrint) printResult();
-      isPrint = false;
       // printState();
+      return true;
 
     } catch (RuntimeError error) {
       Lox.runtimeError(error);
+      return false;
     }
   }
 
+  // Called at the end of a script that ran without a runtime error.
+  void finishScript() {
+    // whether no print statement 
+    if (!isPrint) printResult();
+    isPrint = false;
+  }
+
   public void printResult() {
     // print global outputResult whether no print statement in the code
     // System.out.println(outputResult.getClass().getName());
     // System.out.println("Finalement:"); 
-    if (outputResult instanceof String || outputResult instanceof Double ||
-            outputResult instanceof Integer ||
+    if (Operators.isString(outputResult) || outputResult instanceof Double ||
+            outputResult instanceof Long ||
             outputResult instanceof Boolean) {
         System.out.println(stringify(outputResult));
         outputResult = null;
@@ -95,21 +124,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   public void printState() {
      // debug("\nEnvironment state");
      // debug("Globals state");
-      Map<String, Object> values = globals.values;
-      if (values.isEmpty()) {
-         // debug("Globals is empty");
-      } else {
-          for (Map.Entry<String, Object> entry : values.entrySet())  {
-             // debug(entry.getKey() + ": " + entry.getValue());
-          }
-      }
-     // debug("\nLocals state");
-      if (locals.isEmpty()) {
-         // debug("Locals is empty");
-      } else {
-          for (Map.Entry<Expr, Integer> entry : locals.entrySet()) {
-             // debug(entry.getKey() + ": " + entry.getValue());
-          }
+      for (Environment.Cell cell : globals.cells)  {
+          if (cell == null) continue;
+          // debug(cell.name + ": " + cell.value);
       }
  
   }
@@ -142,24 +159,21 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     Object value = evaluate(expr.value);
-    ((LoxInstance)object).set(expr.name, value);
+    ((LoxInstance)object).set(expr.name, value, expr.cache);
     return value;
   }
 
   @Override
   public Object visitSuperExpr(Expr.Super expr) {
-    int distance = locals.get(expr);
-    LoxClass superclass = (LoxClass)environment.getAt(
-        distance, "super");
+    // Methods are closures, so "super" is always an upvalue.
+    LoxClass superclass = (LoxClass)upvalues[expr.slot].value;
 
-    // "this" is always one level nearer than "super"'s environment.
-    LoxInstance object = (LoxInstance)environment.getAt(
-        distance - 1, "this");
+    LoxInstance object = (LoxInstance)visitThisExpr(expr.receiver);
 
-    LoxFunction method = superclass.findMethod(expr.method.lexeme);
+    LoxFunction method = superclass.findMethod(expr.method.symbol);
     if (method == null) {
       throw new RuntimeError(expr.method,
-          "Undefined property '" + expr.method.lexeme + "'.");
+          "Undefined property '" + expr.method.lexeme() + "'.");
     }
 
     return method.bind(object);
@@ -167,34 +181,33 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitThisExpr(Expr.This expr) {
-    return lookUpVariable(expr.keyword, expr);
+    return lookUpVariable(expr.keyword, null, expr.isUpvalue,
+        expr.isCaptured, expr.slot);
   }
 
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
+    if (expr.node instanceof UnaryNode.DoubleNode) {
+      try {
+        return evaluateDouble(expr);
+      } catch (UnexpectedResult result) {
+        return result.value;
+      }
+    }
+
     Object right = evaluate(expr.right);
 
     switch (expr.operator.type) {
-      case BANG:
-        return !isTruthy(right);
-
-      case MINUS:
-        checkNumberOperand(expr.operator, right);
-        return -(double)right;
-
-      case PLUS:
-        checkNumberOperand(expr.operator, right);
-        return (double)right;
-
       // prefix operators
       case MINUS_MINUS:
         if (expr.right instanceof Expr.Variable) {
             checkNumberOperand(expr.operator, right);
-            double val = (double)right;
+            Object val = Operators.increment(right, -1);
             Expr.Variable  var = (Expr.Variable)expr.right;
-            environment.assign(var.name, val -1);
-            if (expr.isPostfix) return val;
-            else return val -1;
+            assignVariable(var.name, globalCell(var), var.isUpvalue,
+                var.isCaptured, var.slot, val);
+            if (expr.isPostfix) return right;
+            else return val;
         }
         throw new RuntimeError(expr.operator,
             "Operand of a decrement operator must be a variable.");
@@ -202,115 +215,112 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       case PLUS_PLUS:
         if (expr.right instanceof Expr.Variable) {
             checkNumberOperand(expr.operator, right);
-            double val = (double)right;
+            Object val = Operators.increment(right, 1);
             Expr.Variable  var = (Expr.Variable)expr.right;
-            environment.assign(var.name, val +1);
-            if (expr.isPostfix) return val;
-            else return val +1;
+            assignVariable(var.name, globalCell(var), var.isUpvalue,
+                var.isCaptured, var.slot, val);
+            if (expr.isPostfix) return right;
+            else return val;
         }
         throw new RuntimeError(expr.operator,
             "Operand of a decrement operator must be a variable.");
  
-      case BIT_NOT:
-        if (isInteger(right)) {
-            Double dRight = (Double)right;
-            return (double)(~dRight.intValue());
-        }
-
-    throw new RuntimeError(expr.operator, "RuntimeError: operand must be integer.");
-  
     }
 
-
-    // Unreachable.                              
-    return null;
+    UnaryNode node = expr.node;
+    if (node == null) {
+      node = expr.node = UnaryNode.specialize(expr.operator, right);
+    }
+    return node.execute(expr, right);
   }
 
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-   // debug("visitVariableExpr: name: " + expr.name.lexeme);
-    return lookUpVariable(expr.name, expr);
-  }
-
-  private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      return environment.getAt(distance, name.lexeme);
+   // debug("visitVariableExpr: name: " + expr.name.lexeme());
+    return lookUpVariable(expr.name, globalCell(expr), expr.isUpvalue,
+        expr.isCaptured, expr.slot);
+  }
+
+  // A global node links to its cell the first time it runs, so later
+  // reads and writes skip the name lookup. Null for locals.
+  private Environment.Cell globalCell(Expr.Variable expr) {
+    if (!expr.isGlobal) return null;
+    if (expr.cell == null) expr.cell = globals.cell(expr.name.symbol);
+    return expr.cell;
+  }
+
+  private Environment.Cell globalCell(Expr.Assign expr) {
+    if (!expr.isGlobal) return null;
+    if (expr.cell == null) expr.cell = globals.cell(expr.name.symbol);
+    return expr.cell;
+  }
+
+  // Where to find a variable was worked out by the Resolver and
+  // stored on the node itself.
+  private Object lookUpVariable(Token name, Environment.Cell cell,
+                                boolean isUpvalue, boolean isCaptured,
+                                int slot) {
+    if (cell != null) return cell.get(name);
+    if (isUpvalue) return upvalues[slot].value;
+    if (isCaptured) return ((Environment.Cell)stack[fp + slot]).value;
+    return stack[fp + slot];
+  }
+
+  private void assignVariable(Token name, Environment.Cell cell,
+                              boolean isUpvalue, boolean isCaptured,
+                              int slot, Object value) {
+    if (cell != null) {
+      cell.assign(name, value);
+    } else if (isUpvalue) {
+      upvalues[slot].value = value;
+    } else if (isCaptured) {
+      ((Environment.Cell)stack[fp + slot]).value = value;
     } else {
-      return globals.get(name);
+      stack[fp + slot] = value;
     }
   }
 
-  private void checkNumberOperand(Token operator, Object operand) {
-    if (operand instanceof Double) return;
-    throw new RuntimeError(operator, "Operand must be a number.");
-  }
-
-  private boolean isTruthy(Object object) {
-    if (object == null) return false;
-    if (object instanceof Double) {
-      // System.out.println("Je passe ici");
-      Double dbl = (Double)object;
-      if (dbl == 0) return false; 
+  // Defines a variable where the Resolver put it. A captured local
+  // gets a new cell, so closures made in earlier iterations of a loop
+  // keep their own.
+  private void defineVariable(Token name, boolean isGlobal, int slot,
+                              boolean isCaptured, Object value) {
+    if (isGlobal) {
+      globals.define(name.symbol, value);
+    } else if (isCaptured) {
+      stack[fp + slot] = Environment.Cell.local(value);
+    } else {
+      stack[fp + slot] = value;
     }
-    if (object instanceof Boolean) return (boolean)object;
-    
-    return true;
   }
 
-  private String multiplyString(String item, double nb, Token op) {
-      if (nb % 1 != 0) throw new RuntimeError(op,
-              "String multiplier must be an integer");
-      if (nb <0) nb =0;
-      int nbTimes = (int)nb;
-    for (int i=1; i < nbTimes; i++) {
-        item += item;
-    }
-
-    return item;
+  // Collects the cells of the outer variables 'function' uses, from
+  // the current frame or the running function's own upvalues.
+  Environment.Cell[] capture(Expr.Function function) {
+    int count = function.upvalueIndexes.length;
+    if (count == 0) return NO_UPVALUES;
 
-  }
-
-  private boolean isEqual(Object a, Object b) {
-    // nil is only equal to nil.               
-    if (a == null && b == null) return true;
-    if (a == null) return false;
+    Environment.Cell[] cells = new Environment.Cell[count];
+    for (int i = 0; i < count; i++) {
+      int index = function.upvalueIndexes[i];
+      cells[i] = function.upvalueIsLocal[i]
+          ? (Environment.Cell)stack[fp + index]
+          : upvalues[index];
+    }
 
-    return a.equals(b);
+    return cells;
   }
-  //
-  // adding: isInteger
-  private  boolean isInteger(Object object) {
-      if (object instanceof Integer) return true;
-      if (object instanceof Double) {
-          double val = (double)object;
-          return !Double.isInfinite(val) && (Math.floor(val) == val);
-      }
-
-      return false;
 
+  private void checkNumberOperand(Token operator, Object operand) {
+    Operators.checkNumberOperand(operator, operand);
   }
 
-  private void checkNumberOperands(Token operator,
-                                   Object left, Object right) {
-    if (left instanceof Double && right instanceof Double) return;
-    
-    throw new RuntimeError(operator, "Operands must be numbers.");
+  private boolean isTruthy(Object object) {
+    return Operators.isTruthy(object);
   }
 
   private String stringify(Object object) {
-    if (object == null) return "nil";
-
-    // Hack. Work around Java adding ".0" to integer-valued doubles.
-    if (object instanceof Double) {
-      String text = object.toString();
-      if (text.endsWith(".0")) {
-        text = text.substring(0, text.length() - 2);
-      }
-      return text;
-    }
-
-    return object.toString();
+    return Operators.stringify(object);
   }
 
   @Override
@@ -326,38 +336,125 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return outputResult;
   }
 
+  // Evaluates an expression expected to give a number. Operators
+  // specialized for doubles work on primitive doubles all the way
+  // down, so 'a * b + c' allocates no intermediate Double. Any other
+  // expression is evaluated as usual. If the result is not a number
+  // after all, it comes back in an UnexpectedResult.
+  private double evaluateDouble(Expr expr) {
+    if (expr instanceof Expr.Binary &&
+        ((Expr.Binary)expr).node instanceof BinaryNode.DoubleNode) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      BinaryNode.DoubleNode node = (BinaryNode.DoubleNode)binary.node;
+      double left;
+      try {
+        left = evaluateDouble(binary.left);
+      } catch (UnexpectedResult result) {
+        return expectDouble(
+            node.execute(binary, result.value, evaluate(binary.right)));
+      }
+
+      double right;
+      try {
+        right = evaluateDouble(binary.right);
+      } catch (UnexpectedResult result) {
+        return expectDouble(node.execute(binary, left, result.value));
+      }
+
+      return node.executeDouble(binary, left, right);
+    }
+
+    if (expr instanceof Expr.Unary &&
+        ((Expr.Unary)expr).node instanceof UnaryNode.DoubleNode) {
+      Expr.Unary unary = (Expr.Unary)expr;
+      UnaryNode.DoubleNode node = (UnaryNode.DoubleNode)unary.node;
+      double right;
+      try {
+        right = evaluateDouble(unary.right);
+      } catch (UnexpectedResult result) {
+        return expectDouble(node.execute(unary, result.value));
+      }
+
+      return node.executeDouble(right);
+    }
+
+    return expectDouble(evaluate(expr));
+  }
+
+  private double expectDouble(Object value) {
+    if (value instanceof Double) return (double)value;
+    throw new UnexpectedResult(value);
+  }
+
   private void execute(Stmt stmt) {
    // debug("\nexecute top level: stmt: " + getClassName(stmt));
     stmt.accept(this);
 
   }
 
-  void resolve(Expr expr, int depth) {
-   // debug("\nResolve expr in Interpreter");
-    locals.put(expr, depth);
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+   // debug("visitBlock: " + getClassName(stmt.statements));
+    // The block's locals are in the frame, so there is nothing to
+    // create.
+    for (Stmt statement : stmt.statements) {
+      // System.out.println(statement.getClass().getName());
+      // System.out.println("je passe ici");
+      execute(statement);
+    }
+    return null;
   }
 
-  void executeBlock(List<Stmt> statements, Environment environment) {
-   // debug("executeBlock: ");
-    Environment previous = this.environment;
+  // Runs a call to 'function' in a new frame above the caller's. A
+  // method gets 'receiver' in slot 0, then come the arguments.
+  void executeFunction(Expr.Function function,
+                       Environment.Cell[] upvalues, boolean isMethod,
+                       LoxInstance receiver, List<Object> arguments) {
+    Environment.Cell[] previous = this.upvalues;
+    int previousFp = fp;
+    int previousTop = frameTop;
+    fp = frameTop;
+    frameTop = fp + function.slotCount;
+    ensureStack();
+
     try {
-      this.environment = environment;
+      this.upvalues = upvalues;
 
-      for (Stmt statement : statements) {
-        // System.out.println(statement.getClass().getName());
-        // System.out.println("je passe ici");
-        execute(statement);
+      int slot = 0;
+      if (isMethod) defineParameter(function, slot++, receiver);
+      for (Object argument : arguments) {
+        defineParameter(function, slot++, argument);
+      }
+
+      if (closureCompiler != null) {
+        closureCompiler.body(function).execute();
+      } else {
+        for (Stmt statement : function.body) {
+          execute(statement);
+        }
       }
     } finally {
-      this.environment = previous;
+      // Drop the frame's values so they can be collected.
+      Arrays.fill(stack, fp, frameTop, null);
+      fp = previousFp;
+      frameTop = previousTop;
+      this.upvalues = previous;
     }
   }
 
-  @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
-   // debug("visitBlock: " + getClassName(stmt.statements));
-    executeBlock(stmt.statements, new Environment(environment));
-    return null;
+  private void defineParameter(Expr.Function function, int slot,
+                               Object value) {
+    if (function.capturedParams[slot]) {
+      stack[fp + slot] = Environment.Cell.local(value);
+    } else {
+      stack[fp + slot] = value;
+    }
+  }
+
+  private void ensureStack() {
+    if (frameTop > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(frameTop, stack.length * 2));
+    }
   }
 
   @Override
@@ -372,30 +469,35 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       }
     }
 
-    environment.define(stmt.name.lexeme, null);
-
-    if (stmt.superclass != null) {
-      environment = new Environment(environment);
-      environment.define("super", superclass);
+    if (superclass != null) {
+      stack[fp + stmt.superSlot] = Environment.Cell.local(superclass);
     }
 
-    Map<String, LoxFunction> methods = new HashMap<>();
+    // Methods using the class name capture its cell before the class
+    // exists.
+    Environment.Cell cell = stmt.isCaptured ? newCell(stmt.slot) : null;
+
+    SymbolTable<LoxFunction> methods =
+        new SymbolTable<>(stmt.methods.size());
     for (Stmt.Function method : stmt.methods) {
       // Adding: params for lambda function in LoxFunction object
-      LoxFunction function = new LoxFunction(method.name.lexeme, method.function, environment, 
-              method.name.lexeme.equals("init"));
-      methods.put(method.name.lexeme, function);
+      LoxFunction function = new LoxFunction(method.name.lexeme(), method.function,
+              capture(method.function),
+              method.name.symbol == Symbols.INIT, true, null);
+      methods.put(method.name.symbol, function);
     }
 
-    LoxClass klass = new LoxClass(stmt.name.lexeme,
+    LoxClass klass = new LoxClass(stmt.name.lexeme(),
         (LoxClass)superclass, methods);
 
-    if (superclass != null) {
-      environment = environment.enclosing;
+    // Nothing runs while the methods are created, so the class can be
+    // defined once it is complete.
+    if (cell != null) {
+      cell.value = klass;
+    } else {
+      defineVariable(stmt.name, stmt.isGlobal, stmt.slot, false, klass);
     }
 
-    environment.assign(stmt.name, klass);
-
     return null;
   }
 
@@ -408,15 +510,28 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-   // debug("visitFunctionStmt : name: " + stmt.name.lexeme);
+   // debug("visitFunctionStmt : name: " + stmt.name.lexeme());
     // Adding: params for lambda function
-    LoxFunction function = new LoxFunction(stmt.name.lexeme, stmt.function, 
-        environment, false);
+    // A recursive local function captures its own cell.
+    Environment.Cell cell = stmt.isCaptured ? newCell(stmt.slot) : null;
+    LoxFunction function = new LoxFunction(stmt.name.lexeme(), stmt.function,
+        capture(stmt.function), false);
 
-    environment.define(stmt.name.lexeme, function);
+    if (cell != null) {
+      cell.value = function;
+    } else {
+      defineVariable(stmt.name, stmt.isGlobal, stmt.slot, false, function);
+    }
     return null;
   }
 
+  // Puts the cell of a captured local in its slot ahead of its value.
+  Environment.Cell newCell(int slot) {
+    Environment.Cell cell = Environment.Cell.local(null);
+    stack[fp + slot] = cell;
+    return cell;
+  }
+
   @Override
   public Void visitIfStmt(Stmt.If stmt) {
     if (isTruthy(evaluate(stmt.condition))) {
@@ -441,6 +556,32 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.isTailCall) {
+      Expr.Call call = (Expr.Call)stmt.value;
+      LoxInstance receiver = null;
+      Object callee;
+      if (call.callee instanceof Expr.Get) {
+        Expr.Get get = (Expr.Get)call.callee;
+        receiver = evaluateInstance(get);
+        callee = receiver.getForInvoke(get.name, call.cache);
+      } else {
+        callee = evaluate(call.callee);
+      }
+      List<Object> arguments = evaluateArguments(call);
+
+      if (callee instanceof LoxFunction) {
+        LoxFunction function = (LoxFunction)callee;
+        checkArity(call, function, arguments);
+        tailCallee = function;
+        tailReceiver = function.isUnboundMethod() ? receiver
+                                                  : function.receiver;
+        tailArguments = arguments;
+        throw TailCall.SIGNAL;
+      }
+
+      throw new Return(callFunction(call, callee, arguments));
+    }
+
     Object value = null;
     if (stmt.value != null) value = evaluate(stmt.value);
 
@@ -450,15 +591,15 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
    // debug("VisitVarStmt: ");
-   // debug("var name: " + stmt.name.lexeme);
+   // debug("var name: " + stmt.name.lexeme());
     Object value = null;
     if (stmt.initializer != null) {
       value = evaluate(stmt.initializer);
     }
    // debug("Var value: " + value);
 
-    environment.define(stmt.name.lexeme, value);
-    printState();
+    defineVariable(stmt.name, stmt.isGlobal, stmt.slot, stmt.isCaptured,
+        value);
     return null;
   }
 
@@ -468,10 +609,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     while (isTruthy(evaluate(stmt.condition))) {
       try {
         execute(stmt.body);
-      } catch (RuntimeError err) {
-        // System.out.println("Caught in visitWhile with message: " + err.getMessage());
-        if (err.token.lexeme.equals("continue")) continue;
-        if (err.token.lexeme.equals("break")) break;
+      } catch (LoopSignal signal) {
+        if (signal == LoopSignal.BREAK) break;
       }
 
     }
@@ -481,20 +620,38 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return null;
   }
   
+  // 'continue' leaves the body but not the loop, so the increment
+  // still runs.
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    if (stmt.initializer != null) execute(stmt.initializer);
+
+    while (isTruthy(evaluate(stmt.condition))) {
+      try {
+        execute(stmt.body);
+      } catch (LoopSignal signal) {
+        if (signal == LoopSignal.BREAK) break;
+      }
+
+      if (stmt.increment != null) evaluate(stmt.increment);
+    }
+
+    return null;
+  }
+
   public Void visitBreakStmt(Stmt.Break stmt) {
     // System.out.println("Je suis dans break\n");
     // loopStack.peek().isBreak = true;
     // throw new RuntimeException("No while statement"); // RuntimeError(token, "No while statement");
-    String msg = "";
-    if (stmt.keyword.lexeme.equals("break")) {
-      msg = "Error: Break must with while loop";
-      throw new RuntimeError(stmt.keyword, msg);
-    } else if (stmt.keyword.lexeme.equals("continue")) {
-      msg = "Error: Continue must with while loop";
+    boolean isBreak = stmt.keyword.type == TokenType.BREAK;
+    // The Resolver knows whether there is a loop to leave.
+    if (!stmt.isInLoop) {
+      String msg = isBreak ? "Error: Break must with while loop"
+                           : "Error: Continue must with while loop";
       throw new RuntimeError(stmt.keyword, msg);
     }
 
-    return null;
+    throw isBreak ? LoopSignal.BREAK : LoopSignal.CONTINUE;
   }
 
 
@@ -502,313 +659,62 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   public Object visitAssignExpr(Expr.Assign expr) {
    // debug("VisitAssignexpr : expr : " + getClassName(expr));
     Object value = evaluate(expr.value);
-   // debug("Assign name: " + expr.name.lexeme);
+   // debug("Assign name: " + expr.name.lexeme());
    // debug("Assign value: " + value);
    // // Adding: compound assignment 
-    Object cur = environment.get(expr.name);
-    int iVal =0;
-   switch (expr.equals.type) {
-       case EQUAL: break;
-
-        // Adding: compound assignment
-       case PLUS_EQUAL: { 
-            if (cur instanceof Double && value instanceof Double) {
-                checkNumberOperands(expr.equals, cur, value);
-                value = (double)cur + (double)value;
-                break;
-            }
-            if (cur instanceof String || value instanceof String) {
-                value = stringify(cur) + stringify(value);
-                break;
-            }
-
-            throw new RuntimeError(expr.equals, "Operands must be numbers or strings.");
-
-       }
-
-       case MINUS_EQUAL: { 
-            checkNumberOperands(expr.equals, cur, value);
-            value = (double)cur - (double)value;
-            break;
-       }
-
-
-       case SLASH_EQUAL: { 
-            checkNumberOperands(expr.equals, cur, value);
-            value = (double)cur / (double)value;
-            break;
-       }
-
-       case STAR_EQUAL: { 
-            if (cur instanceof Double && value instanceof Double) {
-                checkNumberOperands(expr.equals, cur, value);
-                value = (double)cur * (double)value;
-                break;
-            }
-            
-            if (cur instanceof String && value instanceof Double) {
-                value = multiplyString(stringify(cur), (double)value, expr.equals); 
-                break;
-            }
-
-            throw new RuntimeError(expr.equals, "Operands must be numbers or strings.");
-
-       }
-
-       case MOD_EQUAL: { 
-            checkNumberOperands(expr.equals, cur, value);
-            value = (double)cur % (double)value;
-            break;
-       }
-
-       case EXP_EQUAL: { 
-            checkNumberOperands(expr.equals, cur, value);
-            value = Math.pow((double)cur, (double)value);
-            break;
-       }
-       
-       // Adding: bitwise operators
-       case BIT_OR_EQUAL: { 
-          if (isInteger(cur) && isInteger(value)) {
-            Double dCur = (Double)cur;
-            Double dValue = (Double)value;
-            iVal = dCur.intValue() | dValue.intValue();
-            value = (double)iVal;
-            break;
-          }
-          throw new RuntimeError(expr.equals, "RuntimeError: operands must be integers.");
-       }
-
-       case BIT_AND_EQUAL:  {
-          if (isInteger(cur) && isInteger(value)) {
-            Double dCur = (Double)cur;
-            Double dValue = (Double)value;
-            iVal = dCur.intValue() & dValue.intValue();
-            value = (double)iVal;
-            break;
-          }
-          throw new RuntimeError(expr.equals, "RuntimeError Man: operands must be integers.");
-       }
-
-       case BIT_XOR_EQUAL:  {
-          if (isInteger(cur) && isInteger(value)) {
-            Double dCur = (Double)cur;
-            Double dValue = (Double)value;
-            iVal = dCur.intValue() ^ dValue.intValue();
-            value = (double)iVal;
-            break;
-          }
-          throw new RuntimeError(expr.equals, "RuntimeError Man: operands must be integers.");
-       }
-       
-       // Adding: bitwise shift operators
-       case BIT_LEFT_EQUAL: {
-          if (isInteger(cur) && isInteger(value)) {
-            Double dCur = (Double)cur;
-            Double dValue = (Double)value;
-            iVal = dCur.intValue() << dValue.intValue();
-            value = (double)iVal;
-            break;
-          }
-          throw new RuntimeError(expr.equals, "RuntimeError Man: operands must be integers.");
-       }
-
-       case BIT_RIGHT_EQUAL: {
-          if (isInteger(cur) && isInteger(value)) {
-            Double dCur = (Double)cur;
-            Double dValue = (Double)value;
-            iVal = dCur.intValue() >> dValue.intValue();
-            value = (double)iVal;
-            break;
-          }
-          throw new RuntimeError(expr.equals, "RuntimeError Man: operands must be integers.");
-       }
-
-    }
-
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      environment.assignAt(distance, expr.name, value);
-    } else {
-      globals.assign(expr.name, value);
+    if (expr.equals.type != TokenType.EQUAL) {
+      Object cur = lookUpVariable(expr.name, globalCell(expr),
+          expr.isUpvalue, expr.isCaptured, expr.slot);
+      value = Operators.compound(expr.equals, cur, value);
     }
 
+    assignVariable(expr.name, globalCell(expr), expr.isUpvalue,
+        expr.isCaptured, expr.slot, value);
+
     return value;
   }
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
-    Object left = evaluate(expr.left);
-    Object right = evaluate(expr.right); 
-   // debug("VisitBinaryExpr: ");
-   // debug("left: " + left + ", operator: " + expr.operator.lexeme + ", right: " + right);
-
-    switch (expr.operator.type) {
-      // adding: string comparison
-      case GREATER:
-        if (left instanceof Double && right instanceof Double) {
-            return (double)left > (double)right;
-        }
-        if (left instanceof String && right instanceof String) {
-            return left.toString().compareTo((String)right) > 0;
-        }
-        throw new RuntimeError(expr.operator, "Comparison not supported for operands.");
-      
-      case GREATER_EQUAL:
-        if (left instanceof Double && right instanceof Double) {
-            return (double)left >= (double)right;
-        }
-        if (left instanceof String && right instanceof String) {
-            return left.toString().compareTo((String)right) >= 0;
-        }
-        throw new RuntimeError(expr.operator, "Comparison not supported for operands.");
-
-      case LESSER:
-        if (left instanceof Double && right instanceof Double) {
-            return (double)left < (double)right;
-        }
-        if (left instanceof String && right instanceof String) {
-            return left.toString().compareTo((String)right) < 0;
-        }
-        throw new RuntimeError(expr.operator, "Comparison not supported for operands.");
-
-      case LESSER_EQUAL:
-        if (left instanceof Double && right instanceof Double) {
-            return (double)left <= (double)right;
-        }
-        if (left instanceof String && right instanceof String) {
-            return left.toString().compareTo((String)right) <= 0;
-        }
-        throw new RuntimeError(expr.operator, "Comparison not supported for operands.");
+    BinaryNode node = expr.node;
+    // Numeric nodes evaluate their operands unboxed, so only the
+    // result of the whole arithmetic expression gets boxed.
+    if (node instanceof BinaryNode.DoubleNode) {
+      try {
+        return evaluateDouble(expr);
+      } catch (UnexpectedResult result) {
+        return result.value;
+      }
+    }
 
-      case BANG_EQUAL: 
-        if (left instanceof Double && right instanceof Double) {
-            return !isEqual(left, right);
-        }
-        if (left instanceof String && right instanceof String) {
-            return left.toString().compareTo((String)right) != 0;
-        }
-        throw new RuntimeError(expr.operator, "Comparison not supported for operands.");
+    if (node instanceof BinaryNode.DoubleCompareNode) {
+      double left;
+      try {
+        left = evaluateDouble(expr.left);
+      } catch (UnexpectedResult result) {
+        return node.execute(expr, result.value, evaluate(expr.right));
+      }
 
-      case EQUAL_EQUAL: 
-        if (left instanceof Double && right instanceof Double) {
-            return isEqual(left, right);
-        }
-        if (left instanceof String && right instanceof String) {
-            return left.toString().compareTo((String)right) == 0;
-        }
-        throw new RuntimeError(expr.operator, "Comparison not supported for operands.");
-
-      case MINUS:
-        checkNumberOperands(expr.operator, left, right);
-        return (double)left - (double)right;
-
-        // adding: concat string to number
-      case PLUS:
-        if (left instanceof Double && right instanceof Double) {
-          return (double)left + (double)right;
-        } 
-        if (left instanceof String && right instanceof String) {
-          return (String)left + (String)right;
-        }
-        // converting everything to string
-        if (left instanceof String || right instanceof String) {
-          return stringify(left) + stringify(right);
-        }
-        throw new RuntimeError(expr.operator, "Operands must be numbers or strings.");
-
-      case SLASH:
-        checkNumberOperands(expr.operator, left, right);
-        if ((double)right != 0) return (double)left / (double)right;
-        // adding: error: Division by zero
-        throw new RuntimeError(expr.operator, "Error: Division by zero.");
-
-      case STAR:
-        if (left instanceof Double &&right instanceof Double) {
-            checkNumberOperands(expr.operator, left, right);
-            return (double)left * (double)right;
-        }
-        //
-        // Adding: String multiplication
-        if (left instanceof String &&right instanceof Double) {
-            // Double dRight = (Double)right;
-            // int val = dRight.intValue();
-            return multiplyString(stringify(left), (double)right, expr.operator); 
-        }
+      double right;
+      try {
+        right = evaluateDouble(expr.right);
+      } catch (UnexpectedResult result) {
+        return node.execute(expr, left, result.value);
+      }
 
-        if (left instanceof Double &&right instanceof String) {
-            // Double dLeft = (Double)left;
-            // int val = dLeft.intValue();
-            return multiplyString(stringify(right), (double)left, expr.operator); 
-        }
+      return ((BinaryNode.DoubleCompareNode)node).compare(left, right);
+    }
 
-      // Adding: EXP
-      case EXP:
-        checkNumberOperands(expr.operator, left, right);
-        return Math.pow((double)left, (double)right);
-
-
-    // adding: MOD, MOD_EQUAL
-    case MOD:
-        checkNumberOperands(expr.operator, left, right);
-        if ((double)right != 0) return (double)left % (double)right;
-        // adding: error: Division by zero
-        throw new RuntimeError(expr.operator,  "Error: Division by zero.");
-
-    // Adding: bitwise operators
-    case BIT_OR:
-        if (isInteger(left) && isInteger(right)) {
-            Double dLeft = (Double)left;
-            Double dRight = (Double)right;
-            int val = dLeft.intValue() | dRight.intValue();
-            return (double)val;
-        }
-        throw new RuntimeError(expr.operator, "RuntimeError: operands must be integers.");
- 
-    case BIT_AND:
-        if (isInteger(left) && isInteger(right)) {
-            Double dLeft = (Double)left;
-            Double dRight = (Double)right;
-            int val = dLeft.intValue() & dRight.intValue();
-            return (double)val;
-        }
-        throw new RuntimeError(expr.operator, "RuntimeError: operands must be integers.");
-
-    case BIT_XOR:
-        if (isInteger(left) && isInteger(right)) {
-            Double dLeft = (Double)left;
-            Double dRight = (Double)right;
-            int val = dLeft.intValue() ^ dRight.intValue();
-            return (double)val;
-        }
-        throw new RuntimeError(expr.operator, "RuntimeError: operands must be integers.");
-    
-    case BIT_LEFT:
-        if (isInteger(left) && isInteger(right)) {
-            Double dLeft = (Double)left;
-            Double dRight = (Double)right;
-            int val = dLeft.intValue() << dRight.intValue();
-            return (double)val;
-        }
-        throw new RuntimeError(expr.operator, "RuntimeError: operands must be integers.");
-
-    case BIT_RIGHT:
-        if (isInteger(left) && isInteger(right)) {
-            Double dLeft = (Double)left;
-            Double dRight = (Double)right;
-            int val = dLeft.intValue() >> dRight.intValue();
-            return (double)val;
-        }
-        throw new RuntimeError(expr.operator, "RuntimeError: operands must be integers.");
+    Object left = evaluate(expr.left);
+    Object right = evaluate(expr.right); 
+   // debug("VisitBinaryExpr: ");
+   // debug("left: " + left + ", operator: " + expr.operator.lexeme() + ", right: " + right);
 
-    // Adding: comma operator
-    case COMMA: 
-        return right;
-     
+    // The node is chosen from the operand types of the first run.
+    if (node == null) {
+      node = expr.node = BinaryNode.specialize(expr.operator, left, right);
     }
-
-    // Unreachable.                                
-    return null;
+    return node.execute(expr, left, right);
   }
   // adding: visitTernaryExpr
   @Override
@@ -824,14 +730,44 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Object visitCallExpr(Expr.Call expr) {
    // debug("visitCallExpr : callee: " + getClassName(expr.callee));
+    if (expr.callee instanceof Expr.Get) return invoke(expr);
+
     Object callee = evaluate(expr.callee);
    // debug("voici callee : " + callee);
 
+    return callFunction(expr, callee, evaluateArguments(expr));
+  }
+
+  // obj.method(args). The method is looked up through the call site's
+  // own cache and gets obj as "this" directly, so no bound method is
+  // created. A field holding a function is called as usual.
+  private Object invoke(Expr.Call expr) {
+    Expr.Get get = (Expr.Get)expr.callee;
+    LoxInstance receiver = evaluateInstance(get);
+    Object callee = receiver.getForInvoke(get.name, expr.cache);
+    List<Object> arguments = evaluateArguments(expr);
+
+    if (callee instanceof LoxFunction &&
+        ((LoxFunction)callee).isUnboundMethod()) {
+      LoxFunction method = (LoxFunction)callee;
+      checkArity(expr, method, arguments);
+      return method.invoke(this, receiver, arguments);
+    }
+
+    return callFunction(expr, callee, arguments);
+  }
+
+  private List<Object> evaluateArguments(Expr.Call expr) {
     List<Object> arguments = new ArrayList<>();
     for (Expr argument : expr.arguments) { 
       arguments.add(evaluate(argument));
     }
 
+    return arguments;
+  }
+
+  Object callFunction(Expr.Call expr, Object callee,
+                      List<Object> arguments) {
     if (!(callee instanceof LoxCallable)) {
       throw new RuntimeError(expr.paren,
           "Can only call functions and classes.");
@@ -839,21 +775,30 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     LoxCallable function = (LoxCallable)callee;
 
+    checkArity(expr, function, arguments);
+    if (callee instanceof Println) isPrint = true;
+
+    return function.call(this, arguments);
+  }
+
+  void checkArity(Expr.Call expr, LoxCallable function,
+                  List<Object> arguments) {
     if (arguments.size() != function.arity()) {
       throw new RuntimeError(expr.paren, "Expected " +
           function.arity() + " arguments but got " +
           arguments.size() + ".");
     }
-    if (callee instanceof Println) isPrint = true;
-
-    return function.call(this, arguments);
   }
   
   @Override
   public Object visitGetExpr(Expr.Get expr) {
+    return evaluateInstance(expr).get(expr.name, expr.cache);
+  }
+
+  private LoxInstance evaluateInstance(Expr.Get expr) {
     Object object = evaluate(expr.object);
     if (object instanceof LoxInstance) {
-      return ((LoxInstance) object).get(expr.name);
+      return (LoxInstance)object;
     }
 
     throw new RuntimeError(expr.name,
@@ -866,7 +811,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
    // debug("visitFunctionExpr : body " + getClassName(expr.body));
     // executeBlock(expr.body, new Environment(environment));
 
- return new LoxFunction(null, expr, environment, false);
+ return new LoxFunction(null, expr, capture(expr), false);
 
   }
 
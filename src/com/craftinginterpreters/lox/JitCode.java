@@ -0,0 +1,56 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// A function compiled by the JitCompiler. The generated class extends
+// this one and implements call().
+abstract class JitCode {
+  // The compiled code calls these global functions directly. It is only
+  // valid while each cell still holds the function it held at compile
+  // time.
+  Environment.Cell[] cells;
+  Object[] values;
+  // Whether each parameter was compiled for an integer or a double.
+  boolean[] integerParams;
+
+  boolean isValid() {
+    for (int i = 0; i < cells.length; i++) {
+      if (cells[i].value != values[i]) return false;
+    }
+
+    return true;
+  }
+
+  // Runs the function on arguments that are all numbers. Throws
+  // Deoptimize if the call must be interpreted instead.
+  abstract Object call(List<Object> arguments);
+
+  // Guards the compiled code calls on results the interpreter would hold
+  // as integers. Each throws Deoptimize where the interpreter would give
+  // a double or an error instead. Operations on integers give whole
+  // numbers, so only the range needs checking.
+
+  // Past MAX_INTEGER an integer result becomes a double.
+  static double integer(double value) {
+    if (!(Math.abs(value) < Operators.MAX_INTEGER)) throw Deoptimize.SIGNAL;
+    return value;
+  }
+
+  // Integers that don't divide evenly give a double. Adding 0 turns -0,
+  // which integers don't have, into 0.
+  static double divide(double left, double right) {
+    if (right == 0 || left % right != 0) throw Deoptimize.SIGNAL;
+    return integer(left / right) + 0.0;
+  }
+
+  static double remainder(double left, double right) {
+    if (right == 0) throw Deoptimize.SIGNAL;
+    return left % right + 0.0;
+  }
+
+  // A negative power of an integer gives a double.
+  static double power(double left, double right) {
+    if (right < 0) throw Deoptimize.SIGNAL;
+    return integer(Math.pow(left, right));
+  }
+}
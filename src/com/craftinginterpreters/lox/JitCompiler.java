@@ -0,0 +1,875 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static com.craftinginterpreters.lox.JvmClassWriter.*;
+
+// Compiles hot functions to JVM bytecode, which HotSpot then compiles
+// like any Java code. LoxFunction counts its calls and hands itself
+// over past THRESHOLD; compilation runs on a background thread while
+// the function keeps being interpreted, and the result is installed
+// in LoxFunction.compiled.
+//
+// Only functions working on numbers are compiled: their parameters and
+// locals become JVM doubles, and they may only call global functions
+// of the same kind, which are compiled into the same class as static
+// methods. Such code has no side effects, which keeps the guards
+// simple (see JitCode and Deoptimize). Anything else makes the compiler
+// give up on the function, which then stays interpreted.
+//
+// Every value is also known at compile time to be an integer or a
+// double, as the interpreter would hold it, so results are boxed the
+// same way. A function is compiled for the argument types of the call
+// that made it hot, and a call from compiled code with other types
+// goes to another method compiled for those. Integer results are
+// checked by JitCode's guards.
+class JitCompiler implements Expr.Visitor<Boolean>, Stmt.Visitor<Void> {
+  // Calls before a function is compiled.
+  static final int THRESHOLD = 1000;
+  // Times a function is compiled again after its code was dropped.
+  static final int MAX_RECOMPILES = 3;
+  // Compilations of a function before giving up on guessing the return
+  // types of the functions it calls.
+  private static final int MAX_ATTEMPTS = 8;
+  static boolean isEnabled = true;
+
+  private static final String PACKAGE = "com/craftinginterpreters/lox/";
+  private static final String DEOPTIMIZE = PACKAGE + "Deoptimize";
+  private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+  // Anonymous classes rather than lambdas: bootstrapping the first
+  // lambda would stall the interpreter thread when a function gets hot.
+  private static final ExecutorService thread =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread compilerThread = new Thread(runnable, "lox-jit");
+          compilerThread.setDaemon(true);
+          return compilerThread;
+        }
+      });
+
+  // Thrown when the function uses something the JIT does not handle.
+  private static class Bailout extends RuntimeException {
+    static final Bailout SIGNAL = new Bailout();
+
+    private Bailout() {
+      super(null, null, false, false);
+    }
+  }
+
+  // A function compiled for arguments of given types.
+  private static class Target {
+    final LoxFunction function;
+    final boolean[] integerParams;
+    // Whether its return statements give integers, once one is compiled.
+    Boolean returnsInteger;
+
+    Target(LoxFunction function, boolean[] integerParams) {
+      this.function = function;
+      this.integerParams = integerParams;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Target)) return false;
+      Target target = (Target)other;
+      return function == target.function &&
+          Arrays.equals(integerParams, target.integerParams);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(function) * 31 +
+          Arrays.hashCode(integerParams);
+    }
+  }
+
+  private static class Loop {
+    final Loop enclosing;
+    final Label start = new Label();
+    final Label end = new Label();
+    // Where 'continue' goes: the increment of a for loop.
+    Label next = start;
+
+    Loop(Loop enclosing) {
+      this.enclosing = enclosing;
+    }
+  }
+
+  private final Environment globals;
+  private final String className;
+  private final JvmClassWriter classWriter;
+  // The functions compiled into the class, by method number.
+  private final List<Target> targets = new ArrayList<>();
+  private final Map<Target, Integer> methodNumbers = new HashMap<>();
+  // Whether each target returns an integer. Calls compiled before their
+  // target guess that it does, and are compiled again if it does not.
+  private final Map<Target, Boolean> returnTypes;
+  // The global cells read for calls, and what they held.
+  private final List<Environment.Cell> cells = new ArrayList<>();
+  private final List<Object> values = new ArrayList<>();
+
+  // The function being compiled, and where its code goes.
+  private Target current;
+  private LoxFunction function;
+  // Whether each of its locals holds an integer.
+  private boolean[] integerLocals;
+  private JvmClassWriter.Method code;
+  private Label start;
+  private Loop loop;
+  // A local for intermediate values, after the function's own locals.
+  private int scratch;
+
+  private JitCompiler(Environment globals, String name,
+                      Map<Target, Boolean> returnTypes) {
+    this.globals = globals;
+    this.className = PACKAGE + "Jit$" + name;
+    this.classWriter = new JvmClassWriter(className, PACKAGE + "JitCode");
+    this.returnTypes = returnTypes;
+  }
+
+  // Queues 'function' for compilation, for the types of 'arguments'.
+  // Called once, when it gets hot.
+  static void request(LoxFunction function, Environment globals,
+                      List<Object> arguments) {
+    if (!isEnabled) return;
+
+    boolean[] integerParams = new boolean[arguments.size()];
+    for (int i = 0; i < integerParams.length; i++) {
+      Object argument = arguments.get(i);
+      if (!Operators.isNumber(argument)) return;
+      integerParams[i] = argument instanceof Long;
+    }
+
+    thread.execute(new Runnable() {
+      public void run() {
+        try {
+          function.compiled = compile(function, integerParams, globals);
+        } catch (Bailout bailout) {
+          // Keep interpreting it.
+        } catch (ReflectiveOperationException | LinkageError |
+                 RuntimeException error) {
+          // The JVM refused the class, or the function changed under the
+          // compiler. Either is a bug in the JIT but no reason to stop
+          // the script: keep interpreting.
+        }
+      }
+    });
+  }
+
+  // Runs a call to 'function' in its compiled code. Returns null if the
+  // call has to be interpreted.
+  static Object run(LoxFunction function, JitCode code,
+                    List<Object> arguments) {
+    if (!code.isValid()) {
+      // A function it calls was replaced.
+      function.discardCompiled();
+      return null;
+    }
+
+    // Compiled code computes on doubles, which hold every integer up to
+    // MAX_INTEGER exactly. Arguments of other types than it was compiled
+    // for are interpreted.
+    for (int i = 0; i < arguments.size(); i++) {
+      Object argument = arguments.get(i);
+      if (argument instanceof Long) {
+        long value = (long)argument;
+        if (value > Operators.MAX_INTEGER || value < -Operators.MAX_INTEGER ||
+            !code.integerParams[i]) {
+          return null;
+        }
+      } else if (!(argument instanceof Double) || code.integerParams[i]) {
+        return null;
+      }
+    }
+
+    try {
+      return code.call(arguments);
+    } catch (Deoptimize | StackOverflowError signal) {
+      function.discardCompiled();
+      return null;
+    }
+  }
+
+  // Compiles 'function' again as long as return types were guessed
+  // wrong. A wrong guess is always an integer that turned out a double,
+  // so each attempt has fewer left.
+  private static JitCode compile(LoxFunction function,
+                                 boolean[] integerParams,
+                                 Environment globals)
+      throws ReflectiveOperationException {
+    String name = function.name == null ? "lambda" : function.name;
+    Map<Target, Boolean> returnTypes = new HashMap<>();
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      JitCode compiled = new JitCompiler(globals, name, returnTypes)
+          .compile(new Target(function, integerParams));
+      if (compiled != null) return compiled;
+    }
+    throw Bailout.SIGNAL;
+  }
+
+  // Returns null if a return type was guessed wrong, after correcting
+  // the guess.
+  private JitCode compile(Target entry)
+      throws ReflectiveOperationException {
+    methodNumber(entry);
+    for (int i = 0; i < targets.size(); i++) {
+      compileFunction(i);
+    }
+
+    boolean isGuessWrong = false;
+    for (Target compiled : targets) {
+      if (compiled.returnsInteger != null &&
+          compiled.returnsInteger != returnsInteger(compiled)) {
+        returnTypes.put(compiled, compiled.returnsInteger);
+        isGuessWrong = true;
+      }
+    }
+    if (isGuessWrong) return null;
+
+    JvmClassWriter.Method init = classWriter.method(ACC_PUBLIC, "<init>",
+        "()V", 1);
+    init.local(ALOAD, 0);
+    init.invoke(INVOKESPECIAL, PACKAGE + "JitCode", "<init>", "()V", -1);
+    init.op(RETURN, 0);
+
+    // call() unboxes the arguments for the entry function's method, and
+    // boxes its result as the interpreter would hold it.
+    int arity = entry.integerParams.length;
+    JvmClassWriter.Method call = classWriter.method(ACC_PUBLIC, "call",
+        "(Ljava/util/List;)Ljava/lang/Object;", 2);
+    for (int i = 0; i < arity; i++) {
+      call.local(ALOAD, 1);
+      call.pushInt(i);
+      call.invoke(INVOKEINTERFACE, "java/util/List", "get",
+          "(I)Ljava/lang/Object;", -1);
+      call.checkCast("java/lang/Number");
+      call.invoke(INVOKEVIRTUAL, "java/lang/Number", "doubleValue",
+          "()D", 1);
+    }
+    call.invoke(INVOKESTATIC, className, "f0", descriptor(arity),
+        2 - 2 * arity);
+    if (returnsInteger(entry)) {
+      call.op(D2L, 0);
+      call.invoke(INVOKESTATIC, "java/lang/Long", "valueOf",
+          "(J)Ljava/lang/Long;", -1);
+    } else {
+      call.invoke(INVOKESTATIC, "java/lang/Double", "valueOf",
+          "(D)Ljava/lang/Double;", -1);
+    }
+    call.op(ARETURN, -1);
+
+    Class<?> hidden = lookup.defineHiddenClass(classWriter.toBytes(), true)
+        .lookupClass();
+    JitCode compiled =
+        (JitCode)hidden.getDeclaredConstructor().newInstance();
+
+    compiled.cells = cells.toArray(new Environment.Cell[0]);
+    compiled.values = values.toArray();
+    compiled.integerParams = entry.integerParams;
+    return compiled;
+  }
+
+  private int methodNumber(Target callee) {
+    Integer number = methodNumbers.get(callee);
+    if (number != null) return number;
+
+    if (callee.function.isMethod || callee.function.upvalues.length > 0) {
+      throw Bailout.SIGNAL;
+    }
+
+    targets.add(callee);
+    methodNumbers.put(callee, targets.size() - 1);
+    return targets.size() - 1;
+  }
+
+  private boolean returnsInteger(Target callee) {
+    return returnTypes.getOrDefault(callee, true);
+  }
+
+  private void compileFunction(int number) {
+    current = targets.get(number);
+    function = current.function;
+    Expr.Function declaration = function.declaration;
+    // A body not loaded yet (--lazy) is only known on the main thread.
+    if (declaration.lazy != null) throw Bailout.SIGNAL;
+    // Falling off the end returns nil, which is not a number, so such
+    // code would always deoptimize.
+    if (!alwaysReturns(declaration.body)) throw Bailout.SIGNAL;
+
+    int arity = declaration.params.size();
+    // Each local takes two JVM slots, and local indexes must fit in a
+    // byte.
+    scratch = 2 * declaration.slotCount;
+    if (scratch + 2 > 255) throw Bailout.SIGNAL;
+
+    integerLocals = new boolean[declaration.slotCount];
+    System.arraycopy(current.integerParams, 0, integerLocals, 0, arity);
+
+    code = classWriter.method(ACC_PRIVATE | ACC_STATIC, "f" + number,
+        descriptor(arity), scratch + 2);
+    start = new Label();
+    loop = null;
+
+    code.mark(start);
+    for (Stmt statement : declaration.body) {
+      statement.accept(this);
+    }
+    // Not reached, but the code must not end in the middle of the
+    // method.
+    deoptimize();
+
+    // Jump offsets are 16-bit.
+    if (code.size() > Short.MAX_VALUE) throw Bailout.SIGNAL;
+  }
+
+  // Whether running the statements always ends in a return statement.
+  // Loops are taken to end without one.
+  private static boolean alwaysReturns(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      if (alwaysReturns(statement)) return true;
+    }
+    return false;
+  }
+
+  private static boolean alwaysReturns(Stmt stmt) {
+    if (stmt instanceof Stmt.Return) return true;
+    if (stmt instanceof Stmt.Block) {
+      return alwaysReturns(((Stmt.Block)stmt).statements);
+    }
+    if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If)stmt;
+      return ifStmt.elseBranch != null &&
+          alwaysReturns(ifStmt.thenBranch) &&
+          alwaysReturns(ifStmt.elseBranch);
+    }
+    return false;
+  }
+
+  private static String descriptor(int arity) {
+    StringBuilder descriptor = new StringBuilder("(");
+    for (int i = 0; i < arity; i++) descriptor.append('D');
+    return descriptor.append(")D").toString();
+  }
+
+  private void deoptimize() {
+    code.getStatic(DEOPTIMIZE, "SIGNAL", "L" + DEOPTIMIZE + ";", 1);
+    code.op(ATHROW, -1);
+  }
+
+  // Compiles an expression giving a number, leaving it on the stack.
+  // Returns whether the interpreter would hold it as an integer.
+  private boolean number(Expr expr) {
+    return expr.accept(this);
+  }
+
+  // Compiles a condition: jumps to 'target' if its truthiness is
+  // 'jumpIf', and falls through otherwise.
+  private void branch(Expr expr, boolean jumpIf, Label target) {
+    if (expr instanceof Expr.Grouping) {
+      branch(((Expr.Grouping)expr).expression, jumpIf, target);
+      return;
+    }
+
+    if (expr instanceof Expr.Literal) {
+      Object value = ((Expr.Literal)expr).value;
+      if (Operators.isTruthy(value) == jumpIf) code.jump(GOTO, target, 0);
+      return;
+    }
+
+    if (expr instanceof Expr.Unary &&
+        ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+      branch(((Expr.Unary)expr).right, !jumpIf, target);
+      return;
+    }
+
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)expr;
+      boolean isAnd = logical.operator.type == TokenType.AND;
+      if (isAnd != jumpIf) {
+        // 'a and b' is false as soon as a is, 'a or b' true as soon as
+        // a is.
+        branch(logical.left, jumpIf, target);
+        branch(logical.right, jumpIf, target);
+      } else {
+        Label skip = new Label();
+        branch(logical.left, !jumpIf, skip);
+        branch(logical.right, jumpIf, target);
+        code.mark(skip);
+      }
+      return;
+    }
+
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      switch (binary.operator.type) {
+        case GREATER:
+          compare(binary, DCMPL, jumpIf ? IFGT : IFLE, target);
+          return;
+        case GREATER_EQUAL:
+          compare(binary, DCMPL, jumpIf ? IFGE : IFLT, target);
+          return;
+        case LESSER:
+          compare(binary, DCMPG, jumpIf ? IFLT : IFGE, target);
+          return;
+        case LESSER_EQUAL:
+          compare(binary, DCMPG, jumpIf ? IFLE : IFGT, target);
+          return;
+        case EQUAL_EQUAL:
+          equal(binary, jumpIf ? IFEQ : IFNE, target);
+          return;
+        case BANG_EQUAL:
+          equal(binary, jumpIf ? IFNE : IFEQ, target);
+          return;
+      }
+    }
+
+    // Only zero is false.
+    number(expr);
+    code.op(DCONST_0, 2);
+    code.op(DCMPL, -3);
+    code.jump(jumpIf ? IFNE : IFEQ, target, -1);
+  }
+
+  // NaN compares false, hence DCMPL for > and >=, DCMPG for < and <=.
+  private void compare(Expr.Binary expr, int compare, int jump,
+                       Label target) {
+    number(expr.left);
+    number(expr.right);
+    code.op(compare, -3);
+    code.jump(jump, target, -1);
+  }
+
+  // Numbers are equal when Double.equals() says so: NaN equals NaN, and
+  // 0 differs from -0. Integers are never -0, see positiveZero().
+  private void equal(Expr.Binary expr, int jump, Label target) {
+    number(expr.left);
+    code.invoke(INVOKESTATIC, "java/lang/Double", "doubleToLongBits",
+        "(D)J", 0);
+    number(expr.right);
+    code.invoke(INVOKESTATIC, "java/lang/Double", "doubleToLongBits",
+        "(D)J", 0);
+    code.op(LCMP, -3);
+    code.jump(jump, target, -1);
+  }
+
+  // The frame slot of a local the JIT can keep in a JVM local.
+  private int local(boolean isGlobal, boolean isCaptured,
+                    boolean isUpvalue, int slot) {
+    if (isGlobal || isCaptured || isUpvalue) throw Bailout.SIGNAL;
+    return 2 * slot;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    if (loop == null) throw Bailout.SIGNAL;
+
+    boolean isBreak = stmt.keyword.type == TokenType.BREAK;
+    code.jump(GOTO, isBreak ? loop.end : loop.next, 0);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    throw Bailout.SIGNAL;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    number(stmt.expression);
+    code.op(POP2, -2);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    throw Bailout.SIGNAL;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    Label elseBranch = new Label();
+    branch(stmt.condition, false, elseBranch);
+    stmt.thenBranch.accept(this);
+
+    if (stmt.elseBranch == null) {
+      code.mark(elseBranch);
+      return null;
+    }
+
+    Label end = new Label();
+    code.jump(GOTO, end, 0);
+    code.mark(elseBranch);
+    stmt.elseBranch.accept(this);
+    code.mark(end);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    throw Bailout.SIGNAL;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) throw Bailout.SIGNAL;
+
+    // A tail call to the function itself with arguments of the same
+    // types becomes a jump back to the start with new parameters.
+    if (stmt.isTailCall && callee((Expr.Call)stmt.value) == function) {
+      List<Expr> arguments = ((Expr.Call)stmt.value).arguments;
+      if (arguments.size() != function.arity()) throw Bailout.SIGNAL;
+      boolean[] types = arguments(arguments);
+      if (Arrays.equals(types, current.integerParams)) {
+        for (int i = arguments.size() - 1; i >= 0; i--) {
+          code.local(DSTORE, 2 * i);
+        }
+        code.jump(GOTO, start, 0);
+      } else {
+        returns(invoke(function, types));
+      }
+      return null;
+    }
+
+    returns(number(stmt.value));
+    return null;
+  }
+
+  // Returns the value on the stack. A function's return statements must
+  // all give integers or all give doubles.
+  private void returns(boolean isInteger) {
+    if (current.returnsInteger == null) {
+      current.returnsInteger = isInteger;
+    } else if (current.returnsInteger != isInteger) {
+      throw Bailout.SIGNAL;
+    }
+    code.op(DRETURN, -2);
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) throw Bailout.SIGNAL;
+    int local = local(stmt.isGlobal, stmt.isCaptured, false, stmt.slot);
+
+    integerLocals[stmt.slot] = number(stmt.initializer);
+    code.local(DSTORE, local);
+    return null;
+  }
+
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    if (stmt.initializer != null) stmt.initializer.accept(this);
+
+    loop = new Loop(loop);
+    loop.next = new Label();
+    code.mark(loop.start);
+    branch(stmt.condition, false, loop.end);
+    stmt.body.accept(this);
+    code.mark(loop.next);
+    if (stmt.increment != null) {
+      number(stmt.increment);
+      code.op(POP2, -2);
+    }
+    code.jump(GOTO, loop.start, 0);
+    code.mark(loop.end);
+    loop = loop.enclosing;
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    loop = new Loop(loop);
+    code.mark(loop.start);
+    branch(stmt.condition, false, loop.end);
+    stmt.body.accept(this);
+    code.jump(GOTO, loop.start, 0);
+    code.mark(loop.end);
+    loop = loop.enclosing;
+    return null;
+  }
+
+  @Override
+  public Boolean visitAssignExpr(Expr.Assign expr) {
+    int local = local(expr.isGlobal, expr.isCaptured, expr.isUpvalue,
+        expr.slot);
+    boolean isInteger = integerLocals[expr.slot];
+
+    boolean value = number(expr.value);
+    if (expr.equals.type != TokenType.EQUAL) {
+      // The interpreter reads the variable after evaluating the value.
+      code.local(DSTORE, scratch);
+      code.local(DLOAD, local);
+      code.local(DLOAD, scratch);
+      TokenType operator;
+      switch (expr.equals.type) {
+        case PLUS_EQUAL:  operator = TokenType.PLUS; break;
+        case MINUS_EQUAL: operator = TokenType.MINUS; break;
+        case STAR_EQUAL:  operator = TokenType.STAR; break;
+        case SLASH_EQUAL: operator = TokenType.SLASH; break;
+        case MOD_EQUAL:   operator = TokenType.MOD; break;
+        case EXP_EQUAL:   operator = TokenType.EXP; break;
+        default:
+          throw Bailout.SIGNAL;
+      }
+      value = arithmetic(operator, isInteger && value, false);
+    }
+
+    // A variable keeps one type.
+    if (value != isInteger) throw Bailout.SIGNAL;
+
+    code.op(DUP2, 2);
+    code.local(DSTORE, local);
+    return isInteger;
+  }
+
+  @Override
+  public Boolean visitBinaryExpr(Expr.Binary expr) {
+    boolean left = number(expr.left);
+    boolean right = number(expr.right);
+    return arithmetic(expr.operator.type, left && right, true);
+  }
+
+  // Compiles an operation on the two numbers on the stack, and returns
+  // whether it gives an integer. Integers give one, checked by JitCode's
+  // guards, and anything with a double gives a double. '/' and '%' by
+  // zero are errors, but '/=' and '%=' give an infinity or NaN.
+  private boolean arithmetic(TokenType operator, boolean isInteger,
+                             boolean checkDivisor) {
+    if (isInteger) {
+      switch (operator) {
+        case PLUS:
+          code.op(DADD, -2);
+          guard("integer", 1);
+          break;
+        case MINUS:
+          code.op(DSUB, -2);
+          guard("integer", 1);
+          break;
+        case STAR:
+          code.op(DMUL, -2);
+          guard("integer", 1);
+          positiveZero();
+          break;
+        case SLASH: guard("divide", 2); break;
+        case MOD:   guard("remainder", 2); break;
+        case EXP:   guard("power", 2); break;
+        default:
+          // Comparisons give booleans, only handled as conditions.
+          throw Bailout.SIGNAL;
+      }
+      return true;
+    }
+
+    switch (operator) {
+      case PLUS:  code.op(DADD, -2); break;
+      case MINUS: code.op(DSUB, -2); break;
+      case STAR:  code.op(DMUL, -2); break;
+      case SLASH:
+        if (checkDivisor) checkDivisor();
+        code.op(DDIV, -2);
+        break;
+      case MOD:
+        if (checkDivisor) checkDivisor();
+        code.op(DREM, -2);
+        break;
+      case EXP:
+        code.invoke(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D", -2);
+        break;
+      default:
+        throw Bailout.SIGNAL;
+    }
+    return false;
+  }
+
+  // Turns a -0 on the stack into 0: integers have no -0, which would
+  // make equal integers compare unequal.
+  private void positiveZero() {
+    code.op(DCONST_0, 2);
+    code.op(DADD, -2);
+  }
+
+  // Calls one of JitCode's guards on the 'arity' numbers on the stack.
+  private void guard(String name, int arity) {
+    code.invoke(INVOKESTATIC, PACKAGE + "JitCode", name, descriptor(arity),
+        2 - 2 * arity);
+  }
+
+  // Division by zero is a runtime error, reported by the interpreter.
+  private void checkDivisor() {
+    Label nonZero = new Label();
+    code.op(DUP2, 2);
+    code.op(DCONST_0, 2);
+    code.op(DCMPL, -3);
+    code.jump(IFNE, nonZero, -1);
+    deoptimize();
+    code.mark(nonZero);
+  }
+
+  @Override
+  public Boolean visitTernaryExpr(Expr.Ternary expr) {
+    Label elseBranch = new Label();
+    Label end = new Label();
+    branch(expr.condition, false, elseBranch);
+    boolean isInteger = number(expr.thenBranch);
+    code.jump(GOTO, end, 0);
+    code.mark(elseBranch);
+    if (number(expr.elseBranch) != isInteger) throw Bailout.SIGNAL;
+    code.mark(end);
+    return isInteger;
+  }
+
+  @Override
+  public Boolean visitCallExpr(Expr.Call expr) {
+    LoxFunction callee = callee(expr);
+    int arity = callee.declaration.params.size();
+    if (arity != expr.arguments.size()) throw Bailout.SIGNAL;
+
+    return invoke(callee, arguments(expr.arguments));
+  }
+
+  // Compiles the arguments of a call, and returns which are integers.
+  private boolean[] arguments(List<Expr> arguments) {
+    boolean[] integerParams = new boolean[arguments.size()];
+    for (int i = 0; i < integerParams.length; i++) {
+      integerParams[i] = number(arguments.get(i));
+    }
+    return integerParams;
+  }
+
+  // Calls the method compiling 'callee' for the types of the arguments
+  // on the stack, and returns whether it gives an integer.
+  private boolean invoke(LoxFunction callee, boolean[] integerParams) {
+    Target calleeTarget = new Target(callee, integerParams);
+    int number = methodNumber(calleeTarget);
+    int arity = integerParams.length;
+    code.invoke(INVOKESTATIC, className, "f" + number, descriptor(arity),
+        2 - 2 * arity);
+    return returnsInteger(calleeTarget);
+  }
+
+  // The global function a call goes to, as long as its cell keeps it.
+  private LoxFunction callee(Expr.Call expr) {
+    if (!(expr.callee instanceof Expr.Variable)) throw Bailout.SIGNAL;
+    Expr.Variable variable = (Expr.Variable)expr.callee;
+    if (!variable.isGlobal) throw Bailout.SIGNAL;
+
+    Environment.Cell cell = globals.find(variable.name.symbol);
+    if (cell == null) throw Bailout.SIGNAL;
+    Object value = cell.value;
+    if (!(value instanceof LoxFunction)) throw Bailout.SIGNAL;
+
+    if (!cells.contains(cell)) {
+      cells.add(cell);
+      values.add(value);
+    }
+    return (LoxFunction)values.get(cells.indexOf(cell));
+  }
+
+  @Override
+  public Boolean visitGetExpr(Expr.Get expr) {
+    throw Bailout.SIGNAL;
+  }
+
+  @Override
+  public Boolean visitFunctionExpr(Expr.Function expr) {
+    throw Bailout.SIGNAL;
+  }
+
+  @Override
+  public Boolean visitGroupingExpr(Expr.Grouping expr) {
+    return number(expr.expression);
+  }
+
+  @Override
+  public Boolean visitLiteralExpr(Expr.Literal expr) {
+    if (!Operators.isNumber(expr.value)) throw Bailout.SIGNAL;
+    boolean isInteger = expr.value instanceof Long;
+    if (isInteger && Math.abs((long)expr.value) > Operators.MAX_INTEGER) {
+      throw Bailout.SIGNAL;
+    }
+
+    code.pushDouble(Operators.toDouble(expr.value));
+    return isInteger;
+  }
+
+  @Override
+  public Boolean visitLogicalExpr(Expr.Logical expr) {
+    throw Bailout.SIGNAL;
+  }
+
+  @Override
+  public Boolean visitSetExpr(Expr.Set expr) {
+    throw Bailout.SIGNAL;
+  }
+
+  @Override
+  public Boolean visitSuperExpr(Expr.Super expr) {
+    throw Bailout.SIGNAL;
+  }
+
+  @Override
+  public Boolean visitThisExpr(Expr.This expr) {
+    throw Bailout.SIGNAL;
+  }
+
+  @Override
+  public Boolean visitUnaryExpr(Expr.Unary expr) {
+    switch (expr.operator.type) {
+      case MINUS: {
+        boolean isInteger = number(expr.right);
+        code.op(DNEG, 0);
+        if (isInteger) positiveZero();
+        return isInteger;
+      }
+
+      case PLUS:
+        return number(expr.right);
+
+      case PLUS_PLUS:
+      case MINUS_MINUS: {
+        if (!(expr.right instanceof Expr.Variable)) throw Bailout.SIGNAL;
+        Expr.Variable variable = (Expr.Variable)expr.right;
+        int local = local(variable.isGlobal, variable.isCaptured,
+            variable.isUpvalue, variable.slot);
+        int add = expr.operator.type == TokenType.PLUS_PLUS ? DADD : DSUB;
+        boolean isInteger = integerLocals[variable.slot];
+
+        code.local(DLOAD, local);
+        // A postfix operator gives the value from before.
+        if (expr.isPostfix) code.op(DUP2, 2);
+        code.op(DCONST_1, 2);
+        code.op(add, -2);
+        if (isInteger) guard("integer", 1);
+        if (!expr.isPostfix) code.op(DUP2, 2);
+        code.local(DSTORE, local);
+        return isInteger;
+      }
+
+      default:
+        throw Bailout.SIGNAL;
+    }
+  }
+
+  @Override
+  public Boolean visitVariableExpr(Expr.Variable expr) {
+    code.local(DLOAD, local(expr.isGlobal, expr.isCaptured,
+        expr.isUpvalue, expr.slot));
+    return integerLocals[expr.slot];
+  }
+}
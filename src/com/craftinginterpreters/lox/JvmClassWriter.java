@@ -0,0 +1,342 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Builds a JVM class file for the JitCompiler. It only knows the parts
+// of the format the JIT needs: the constant pool, and methods with a
+// Code attribute. Classes are written as version 49 so methods need no
+// StackMapTable: the JVM verifies them by type inference instead.
+class JvmClassWriter {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  // The opcodes the JIT emits.
+  static final int ICONST_0 = 0x03;
+  static final int DCONST_0 = 0x0e;
+  static final int DCONST_1 = 0x0f;
+  static final int BIPUSH = 0x10;
+  static final int LDC2_W = 0x14;
+  static final int DLOAD = 0x18;
+  static final int ALOAD = 0x19;
+  static final int DSTORE = 0x39;
+  static final int POP2 = 0x58;
+  static final int DUP2 = 0x5c;
+  static final int DADD = 0x63;
+  static final int DSUB = 0x67;
+  static final int DMUL = 0x6b;
+  static final int DDIV = 0x6f;
+  static final int DREM = 0x73;
+  static final int DNEG = 0x77;
+  static final int D2L = 0x8f;
+  static final int LCMP = 0x94;
+  static final int DCMPL = 0x97;
+  static final int DCMPG = 0x98;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int IFLT = 0x9b;
+  static final int IFGE = 0x9c;
+  static final int IFGT = 0x9d;
+  static final int IFLE = 0x9e;
+  static final int GOTO = 0xa7;
+  static final int DRETURN = 0xaf;
+  static final int ARETURN = 0xb0;
+  static final int RETURN = 0xb1;
+  static final int GETSTATIC = 0xb2;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+  static final int INVOKEINTERFACE = 0xb9;
+  static final int ATHROW = 0xbf;
+  static final int CHECKCAST = 0xc0;
+
+  // Bytes being written, which jumps can patch afterwards.
+  private static class Buffer {
+    byte[] bytes = new byte[256];
+    int length = 0;
+
+    void u1(int value) {
+      if (length == bytes.length) {
+        bytes = Arrays.copyOf(bytes, length * 2);
+      }
+      bytes[length++] = (byte)value;
+    }
+
+    void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    void u4(int value) {
+      u2(value >> 16);
+      u2(value);
+    }
+
+    void write(Buffer buffer) {
+      for (int i = 0; i < buffer.length; i++) u1(buffer.bytes[i]);
+    }
+  }
+
+  // A position in a method's code that jumps can target before it is
+  // known.
+  static class Label {
+    private int position = -1;
+    // Operand stack depth on arrival, -1 until something jumps here.
+    private int stack = -1;
+    // Where each forward jump to the label starts.
+    private final List<Integer> jumps = new ArrayList<>();
+  }
+
+  class Method {
+    private final int access;
+    private final int name;
+    private final int descriptor;
+    private final Buffer code = new Buffer();
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+    // False after a jump, return or throw, until the next label.
+    private boolean isReachable = true;
+
+    private Method(int access, String name, String descriptor,
+                   int maxLocals) {
+      this.access = access;
+      this.name = utf8(name);
+      this.descriptor = utf8(descriptor);
+      this.maxLocals = maxLocals;
+    }
+
+    int size() {
+      return code.length;
+    }
+
+    // Emits an instruction without operands, which changes the depth
+    // of the operand stack by 'stackDelta' slots.
+    void op(int opcode, int stackDelta) {
+      code.u1(opcode);
+      adjust(stackDelta);
+      if (opcode == ATHROW || (opcode >= DRETURN && opcode <= RETURN)) {
+        isReachable = false;
+      }
+    }
+
+    void pushInt(int value) {
+      if (value <= 5) {
+        op(ICONST_0 + value, 1);
+      } else {
+        code.u1(BIPUSH);
+        code.u1(value);
+        adjust(1);
+      }
+    }
+
+    void pushDouble(double value) {
+      if (Double.doubleToRawLongBits(value) == 0L) {
+        op(DCONST_0, 2);
+      } else if (value == 1.0) {
+        op(DCONST_1, 2);
+      } else {
+        code.u1(LDC2_W);
+        code.u2(doubleConstant(value));
+        adjust(2);
+      }
+    }
+
+    // DLOAD, DSTORE or ALOAD on local 'index', which must be below 256.
+    void local(int opcode, int index) {
+      code.u1(opcode);
+      code.u1(index);
+      adjust(opcode == DLOAD ? 2 : opcode == DSTORE ? -2 : 1);
+      maxLocals = Math.max(maxLocals, index + (opcode == ALOAD ? 1 : 2));
+    }
+
+    void getStatic(String owner, String name, String descriptor,
+                   int stackDelta) {
+      code.u1(GETSTATIC);
+      code.u2(member(9, owner, name, descriptor));
+      adjust(stackDelta);
+    }
+
+    void invoke(int opcode, String owner, String name, String descriptor,
+                int stackDelta) {
+      code.u1(opcode);
+      if (opcode == INVOKEINTERFACE) {
+        code.u2(member(11, owner, name, descriptor));
+        // The argument slots, receiver included, then a zero byte.
+        code.u1(returnSize(descriptor) - stackDelta);
+        code.u1(0);
+      } else {
+        code.u2(member(10, owner, name, descriptor));
+      }
+      adjust(stackDelta);
+    }
+
+    void checkCast(String type) {
+      code.u1(CHECKCAST);
+      code.u2(classConstant(type));
+    }
+
+    // A conditional jump pops its operands first, so 'stackDelta' is
+    // applied before the stack depth at the target is recorded.
+    void jump(int opcode, Label target, int stackDelta) {
+      adjust(stackDelta);
+      target.stack = stack;
+      int start = code.length;
+      code.u1(opcode);
+      if (target.position != -1) {
+        code.u2(target.position - start);
+      } else {
+        target.jumps.add(start);
+        code.u2(0);
+      }
+      if (opcode == GOTO) isReachable = false;
+    }
+
+    void mark(Label label) {
+      label.position = code.length;
+      for (int start : label.jumps) {
+        int offset = label.position - start;
+        code.bytes[start + 1] = (byte)(offset >> 8);
+        code.bytes[start + 2] = (byte)offset;
+      }
+      // Code only reached by jumps starts with the stack they left.
+      if (!isReachable && label.stack != -1) stack = label.stack;
+      isReachable = true;
+    }
+
+    private void adjust(int stackDelta) {
+      stack += stackDelta;
+      maxStack = Math.max(maxStack, stack);
+    }
+  }
+
+  private final Buffer pool = new Buffer();
+  private int poolCount = 1;
+  private final Map<String, Integer> poolIndexes = new HashMap<>();
+  private final List<Method> methods = new ArrayList<>();
+  private final int thisClass;
+  private final int superClass;
+  private final int codeName;
+
+  JvmClassWriter(String name, String superName) {
+    thisClass = classConstant(name);
+    superClass = classConstant(superName);
+    codeName = utf8("Code");
+  }
+
+  Method method(int access, String name, String descriptor,
+                int maxLocals) {
+    Method method = new Method(access, name, descriptor, maxLocals);
+    methods.add(method);
+    return method;
+  }
+
+  byte[] toBytes() {
+    Buffer out = new Buffer();
+    out.u4(0xcafebabe);
+    out.u2(0);
+    out.u2(49);
+    out.u2(poolCount);
+    out.write(pool);
+    out.u2(ACC_FINAL | ACC_SUPER);
+    out.u2(thisClass);
+    out.u2(superClass);
+    out.u2(0); // Interfaces.
+    out.u2(0); // Fields.
+
+    out.u2(methods.size());
+    for (Method method : methods) {
+      out.u2(method.access);
+      out.u2(method.name);
+      out.u2(method.descriptor);
+      out.u2(1);
+      out.u2(codeName);
+      out.u4(12 + method.code.length);
+      out.u2(method.maxStack);
+      out.u2(method.maxLocals);
+      out.u4(method.code.length);
+      out.write(method.code);
+      out.u2(0); // Exception table.
+      out.u2(0); // Attributes.
+    }
+
+    out.u2(0); // Attributes.
+    return Arrays.copyOf(out.bytes, out.length);
+  }
+
+  private int utf8(String value) {
+    Integer index = poolIndexes.get("U" + value);
+    if (index != null) return index;
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    pool.u1(1);
+    pool.u2(bytes.length);
+    for (byte b : bytes) pool.u1(b);
+    return add("U" + value, 1);
+  }
+
+  private int classConstant(String name) {
+    Integer index = poolIndexes.get("C" + name);
+    if (index != null) return index;
+
+    int nameIndex = utf8(name);
+    pool.u1(7);
+    pool.u2(nameIndex);
+    return add("C" + name, 1);
+  }
+
+  private int doubleConstant(double value) {
+    long bits = Double.doubleToRawLongBits(value);
+    Integer index = poolIndexes.get("D" + bits);
+    if (index != null) return index;
+
+    pool.u1(6);
+    pool.u4((int)(bits >>> 32));
+    pool.u4((int)bits);
+    // A double takes two entries.
+    return add("D" + bits, 2);
+  }
+
+  // A field (tag 9), method (10) or interface method (11) reference.
+  private int member(int tag, String owner, String name,
+                     String descriptor) {
+    String key = tag + owner + "." + name + descriptor;
+    Integer index = poolIndexes.get(key);
+    if (index != null) return index;
+
+    int ownerIndex = classConstant(owner);
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    pool.u1(12);
+    pool.u2(nameIndex);
+    pool.u2(descriptorIndex);
+    int nameAndType = add("N" + key, 1);
+
+    pool.u1(tag);
+    pool.u2(ownerIndex);
+    pool.u2(nameAndType);
+    return add(key, 1);
+  }
+
+  private int add(String key, int size) {
+    int index = poolCount;
+    poolIndexes.put(key, index);
+    poolCount += size;
+    return index;
+  }
+
+  // Stack slots taken by the value a method returns.
+  private static int returnSize(String descriptor) {
+    char type = descriptor.charAt(descriptor.indexOf(')') + 1);
+    if (type == 'V') return 0;
+    if (type == 'D' || type == 'J') return 2;
+    return 1;
+  }
+}
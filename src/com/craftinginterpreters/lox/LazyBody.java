@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// The body of a function that was only pre-parsed (--lazy): the parser
+// matched its braces and went on. It is parsed, resolved and optimized
+// on the function's first call, so a script that loads a big library
+// only pays for the functions it uses. Lazy functions are declared at
+// the top level, so they have no upvalues to find before that.
+class LazyBody {
+  private final Scanner scanner;
+  // The body's '{', and the index of the token after it.
+  private final Token brace;
+  private final int start;
+  // Set by the Resolver: the class of a method, and whether it is the
+  // initializer.
+  Token klass;
+  boolean isInitializer;
+
+  LazyBody(Scanner scanner, Token brace, int start) {
+    this.scanner = scanner;
+    this.brace = brace;
+    this.start = start;
+  }
+
+  // Fills in the body of 'function'. Syntax and resolution errors are
+  // reported with their usual messages, but only now, on the first
+  // call, and then stop the script.
+  //
+  // The body is resolved and optimized in a copy of the function, then
+  // copied over before clearing 'lazy'. The JIT thread reads the
+  // function once it sees 'lazy' cleared, so it never sees half of it.
+  void load(Expr.Function function) {
+    List<Stmt> body = new Parser(scanner).parseBody(start);
+    Expr.Function loaded = new Expr.Function(function.params, body);
+    if (!Lox.hadError) {
+      new Resolver().resolveBody(loaded, klass, isInitializer);
+    }
+
+    if (Lox.hadError) {
+      throw new RuntimeError(brace, "Could not load the function's body.");
+    }
+
+    if (Lox.optimize) body = new Optimizer().optimizeBody(body);
+
+    function.body.addAll(body);
+    function.slotCount = loaded.slotCount;
+    function.capturedParams = loaded.capturedParams;
+    function.upvalueIsLocal = loaded.upvalueIsLocal;
+    function.upvalueIndexes = loaded.upvalueIndexes;
+    function.lazy = null;
+  }
+}
@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by break and continue to leave the loop body. There are only
+// two of them, made once and without a stack trace, so a signal costs
+// no allocation.
+class LoopSignal extends RuntimeException {
+  static final LoopSignal BREAK = new LoopSignal();
+  static final LoopSignal CONTINUE = new LoopSignal();
+
+  private LoopSignal() {
+    super(null, null, false, false);
+  }
+}
@@ -3,31 +3,97 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
 
   private static final Interpreter interpreter = new Interpreter();
+  private static final VM vm = new VM();
+  // Execution engine: "tree" for the tree-walking interpreter,
+  // "closure" for the AST compiled to closures, "vm" for the bytecode
+  // compiler and virtual machine.
+  private static String engine = "tree";
+  // Run the Optimizer between resolving and running.
+  static boolean optimize = true;
+  // Print the inline cache hit and miss counts at exit.
+  private static boolean cacheStats = false;
+  // Run each top-level declaration of a script file as soon as it is
+  // parsed, instead of parsing the whole file first.
+  private static boolean stream = false;
+  // Only match the braces of top-level functions and methods while
+  // parsing, and parse their bodies on their first call.
+  private static boolean lazy = false;
+  // Keep resolved scripts in the .loxc cache, and run them from there.
+  private static boolean cache = true;
   static boolean hadError = false;
   static boolean hadRuntimeError = false;
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
+    List<String> scripts = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--engine=")) {
+        engine = arg.substring("--engine=".length());
+      } else if (arg.equals("--cache-stats")) {
+        cacheStats = true;
+        InlineCache.isCounting = true;
+      } else if (arg.equals("--no-cache")) {
+        cache = false;
+      } else if (arg.equals("--lazy")) {
+        lazy = true;
+      } else if (arg.equals("--stream")) {
+        stream = true;
+      } else if (arg.equals("--no-optimize")) {
+        optimize = false;
+      } else if (arg.equals("--no-jit")) {
+        // Interpret every function, however hot.
+        JitCompiler.isEnabled = false;
+      } else {
+        scripts.add(arg);
+      }
+    }
+
+    if (scripts.size() > 1 ||
+        !(engine.equals("tree") || engine.equals("closure") ||
+          engine.equals("vm"))) {
+      System.out.println("Usage: jlox [--engine=tree|closure|vm] [--cache-stats] [--no-optimize] [--no-cache] [--stream] [--lazy] [--no-jit] [script]");
+      System.out.println("  --lazy parses a function's body on its first call, so errors in it are reported then.");
       System.exit(64); 
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    }
+
+    if (engine.equals("closure")) {
+      interpreter.closureCompiler = new ClosureCompiler(interpreter);
+    }
+
+    if (scripts.size() == 1) {
+      runFile(scripts.get(0));
     } else {
       runPrompt();
     }
   }
 
   private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+    if (stream) {
+      try {
+        runStream(new SourceReader(Paths.get(path)));
+      } catch (UncheckedIOException error) {
+        throw error.getCause();
+      }
+    } else {
+      byte[] bytes = Files.readAllBytes(Paths.get(path));
+      // Lazy function bodies are still tokens, which the cache can't
+      // keep.
+      if (cache && !lazy) {
+        runCached(bytes);
+      } else {
+        run(new String(bytes, Charset.defaultCharset()), null);
+      }
+    }
+    if (cacheStats) InlineCache.printStats();
 
     // Indicate an error in the exit code.           
     if (hadError) System.exit(65);
@@ -35,40 +101,113 @@ public class Lox {
 
   }
 
+  // Scans 'source' and returns the number of tokens, for the scanner
+  // throughput benchmark.
+  public static int scan(String source) {
+    return new Scanner(source).scanTokens().size();
+  }
+
   private static void runPrompt() throws IOException {
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
 
     for (;;) { 
       System.out.print("> ");
-      run(reader.readLine());
+      run(reader.readLine(), null);
       hadError = false;
     }
 
   }
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+  // Runs the script from the .loxc cache, or runs it from the source and
+  // adds it to the cache.
+  private static void runCached(byte[] bytes) {
+    ScriptCache scriptCache = new ScriptCache(bytes, optimize);
+    List<Stmt> statements = scriptCache.load();
+    if (statements != null) {
+      execute(statements, scriptCache.scriptFrameSize());
+    } else {
+      run(new String(bytes, Charset.defaultCharset()), scriptCache);
+    }
+  }
 
-    Parser parser = new Parser(tokens);
+  // 'scriptCache' gets the resolved script unless there is an error.
+  private static void run(String source, ScriptCache scriptCache) {
+    Parser parser = new Parser(new Scanner(source));
+    // The VM compiles every function ahead, so it has no use for it.
+    parser.isLazy = lazy && !engine.equals("vm");
     List<Stmt> statements = parser.parse();
     //
     // Stop if there was a syntax error.                   
     if (hadError) return;
-    Resolver resolver = new Resolver(interpreter);
+    Resolver resolver = new Resolver();
     resolver.resolve(statements);
     // resolver.printScopes();
     
     // Stop if there was a resolution error.
     if (hadError) return;
 
+    if (optimize) statements = new Optimizer().optimize(statements);
 
-    interpreter.interpret(statements);
+    if (scriptCache != null) {
+      scriptCache.store(statements, resolver.scriptFrameSize());
+    }
+    execute(statements, resolver.scriptFrameSize());
+  }
+
+  private static void execute(List<Stmt> statements, int frameSize) {
+    if (engine.equals("vm")) {
+      VmFunction script = new Compiler().compile(statements);
+      // Stop if the code does not fit in the bytecode limits.
+      if (hadError) return;
+
+      vm.interpret(script);
+      return;
+    }
+
+
+    interpreter.interpret(statements, frameSize);
     // System.out.println(new AstPrinter().print(expression));
 
   }
 
+  // Parses, resolves and runs one top-level declaration at a time, so
+  // output starts before the end of the file is read, and the tokens and
+  // source text of a declaration can go once it has run. A syntax error
+  // later in the file is reported after the declarations before it have
+  // run; nothing runs after an error.
+  private static void runStream(SourceReader source) {
+    Parser parser = new Parser(new Scanner(source));
+    Resolver resolver = new Resolver();
+    Optimizer optimizer = new Optimizer();
+    while (!parser.isDone()) {
+      Stmt statement = parser.parseDeclaration();
+      // Keep parsing after an error, to report the syntax errors.
+      if (hadError || hadRuntimeError) continue;
+
+      List<Stmt> statements = List.of(statement);
+      resolver.resolve(statements);
+      if (hadError) continue;
+
+      if (optimize) statements = optimizer.optimize(statements);
+
+      if (engine.equals("vm")) {
+        VmFunction script = new Compiler().compile(statements);
+        if (hadError) continue;
+        vm.runScript(script);
+      } else {
+        interpreter.runScript(statements, resolver.scriptFrameSize());
+      }
+    }
+
+    if (hadError || hadRuntimeError) return;
+    if (engine.equals("vm")) {
+      vm.finishScript();
+    } else {
+      interpreter.finishScript();
+    }
+  }
+
   static void error(int line, int col, String message) {
     report(line, col, "", message);
   }
@@ -89,7 +228,7 @@ public class Lox {
     if (token.type == TokenType.EOF) {
       report(token.line, token.col, " at end", message);
     } else {
-      report(token.line, token.col, " at '" + token.lexeme + "'", message);
+      report(token.line, token.col, " at '" + token.lexeme() + "'", message);
     }
   }
 
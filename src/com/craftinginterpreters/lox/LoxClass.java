@@ -1,31 +1,39 @@
 package com.craftinginterpreters.lox;
 
 import java.util.List;
-import java.util.Map;
 
 class LoxClass implements LoxCallable {
   final String name;
   final LoxClass superclass;
 
-  private final Map<String, LoxFunction> methods;
+  // All the methods of the class, inherited ones included, so a
+  // lookup never walks up the superclass chain.
+  private final SymbolTable<LoxFunction> methods;
+  private final LoxFunction initializer;
+  private final int arity;
+
+  // Shape of new instances, before any field is set.
+  final Shape rootShape = new Shape(this);
+  // Largest number of fields an instance has had so far.
+  int instanceSize = 0;
 
   LoxClass(String name, LoxClass superclass,
-           Map<String, LoxFunction> methods) {
+           SymbolTable<LoxFunction> methods) {
     this.superclass = superclass;
     this.name = name;
-    this.methods = methods;
-  }
 
-  LoxFunction findMethod(String name) {
-    if (methods.containsKey(name)) {
-      return methods.get(name);
-    }
+    // A class cannot change once defined, so its own methods can be
+    // merged over the superclass's table here.
+    this.methods = new SymbolTable<>();
+    if (superclass != null) this.methods.putAll(superclass.methods);
+    this.methods.putAll(methods);
 
-    if (superclass != null) {
-      return superclass.findMethod(name);
-    }
+    this.initializer = this.methods.get(Symbols.INIT);
+    this.arity = initializer == null ? 0 : initializer.arity();
+  }
 
-    return null;
+  LoxFunction findMethod(int name) {
+    return methods.get(name);
   }
 
   @Override
@@ -36,9 +44,8 @@ class LoxClass implements LoxCallable {
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
     LoxInstance instance = new LoxInstance(this);
-    LoxFunction initializer = findMethod("init");
     if (initializer != null) {
-      initializer.bind(instance).call(interpreter, arguments);
+      initializer.invoke(interpreter, instance, arguments);
     }
 
     return instance;
@@ -46,10 +53,7 @@ class LoxClass implements LoxCallable {
 
   @Override
   public int arity() {
-    LoxFunction initializer = findMethod("init");
-    if (initializer == null) return 0;
-    return initializer.arity();
-
+    return arity;
   }
 
 }
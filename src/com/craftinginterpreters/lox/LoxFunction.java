@@ -3,23 +3,48 @@ package com.craftinginterpreters.lox;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-  private final String name;
-  private final Expr.Function declaration;
-  private final Environment closure;
+  final String name;
+  final Expr.Function declaration;
+  // The cells of the outer variables the function uses.
+  final Environment.Cell[] upvalues;
   private final boolean isInitializer;
+  // A method takes "this" in slot 0 of its frame.
+  final boolean isMethod;
+  // The instance a method is bound to, null if not bound.
+  final LoxInstance receiver;
 
-  LoxFunction(String name, Expr.Function declaration, Environment closure, boolean isInitializer) {
+  // Calls so far, until the function gets hot and goes to the JIT.
+  private int callCount = 0;
+  private int recompiles = 0;
+  // Set by the JIT thread once the function is compiled, and cleared
+  // when the compiled code no longer applies.
+  volatile JitCode compiled;
+
+  LoxFunction(String name, Expr.Function declaration, Environment.Cell[] upvalues, boolean isInitializer) {
+    this(name, declaration, upvalues, isInitializer, false, null);
+  }
+
+  LoxFunction(String name, Expr.Function declaration, Environment.Cell[] upvalues,
+              boolean isInitializer, boolean isMethod, LoxInstance receiver) {
     this.name = name;
-    this.closure = closure;
+    this.upvalues = upvalues;
 
     this.declaration = declaration;
     this.isInitializer = isInitializer;
+    this.isMethod = isMethod;
+    this.receiver = receiver;
   }
 
+  // Only needed when the method is used as a value, as in
+  // 'var f = obj.method;'. Calls pass the receiver to invoke() instead.
   LoxFunction bind(LoxInstance instance) {
-    Environment environment = new Environment(closure);
-    environment.define("this", instance);
-    return new LoxFunction(name, declaration, environment, isInitializer);
+    return new LoxFunction(name, declaration, upvalues, isInitializer,
+        true, instance);
+  }
+
+  // A method straight from its class, which needs a receiver.
+  boolean isUnboundMethod() {
+    return isMethod && receiver == null;
   }
 
   @Override
@@ -36,24 +61,63 @@ class LoxFunction implements LoxCallable {
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
-    Environment environment = new Environment(closure);
-    for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(declaration.params.get(i).lexeme,
-          arguments.get(i));
+    return invoke(interpreter, receiver, arguments);
+  }
+
+  Object invoke(Interpreter interpreter, LoxInstance receiver,
+                List<Object> arguments) {
+    LoxFunction function = this;
+    // A tail call replaces the running function: loop until one
+    // returns without making another.
+    for (;;) {
+      try {
+        return function.execute(interpreter, receiver, arguments);
+      } catch (TailCall signal) {
+        function = interpreter.tailCallee;
+        receiver = interpreter.tailReceiver;
+        arguments = interpreter.tailArguments;
+      }
+    }
+  }
+
+  // Drops the compiled code once it no longer applies. The function is
+  // compiled again when it gets hot again, a few times at most, so a
+  // rare deoptimization doesn't keep it interpreted for good.
+  void discardCompiled() {
+    compiled = null;
+    if (recompiles < JitCompiler.MAX_RECOMPILES) {
+      recompiles++;
+      callCount = 0;
+    }
+  }
+
+  private Object execute(Interpreter interpreter, LoxInstance receiver,
+                         List<Object> arguments) {
+    if (declaration.lazy != null) declaration.lazy.load(declaration);
+
+    if (!isMethod) {
+      JitCode code = compiled;
+      if (code != null) {
+        Object result = JitCompiler.run(this, code, arguments);
+        if (result != null) return result;
+      } else if (callCount < JitCompiler.THRESHOLD &&
+                 ++callCount == JitCompiler.THRESHOLD) {
+        JitCompiler.request(this, interpreter.globals, arguments);
+      }
     }
 
     try {
-      interpreter.executeBlock(declaration.body, environment);
+      interpreter.executeFunction(declaration, upvalues, isMethod,
+          receiver, arguments);
     } catch (Return returnValue) {
-      if (isInitializer) return closure.getAt(0, "this");
+      if (isInitializer) return receiver;
 
       return returnValue.value;
     }
 
-    if (isInitializer) return closure.getAt(0, "this");
+    if (isInitializer) return receiver;
 
     return null;
   }
 
 }
-
@@ -1,35 +1,86 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
-  private LoxClass klass;
-  private final Map<String, Object> fields = new HashMap<>();
+  // The shape also tells the instance's class.
+  private Shape shape;
+  private Object[] values;
 
   LoxInstance(LoxClass klass) {
-    this.klass = klass;
+    this.shape = klass.rootShape;
+    this.values = new Object[klass.instanceSize];
   }
 
-  Object get(Token name) {
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
-    }
+  // The caches of property and call sites are keyed by shape. For a
+  // field they hold its slot, for a method the function found for the
+  // class, so a hit skips both the field and the method lookups.
+  Object get(Token name, InlineCache cache) {
+    Object cached = lookup(name, cache);
+    if (cached instanceof Integer) return values[(int)cached];
+    return ((LoxFunction)cached).bind(this);
+  }
+
+  // Like get(), but a method is returned unbound, for the caller to
+  // invoke with this instance as the receiver.
+  Object getForInvoke(Token name, InlineCache cache) {
+    Object cached = lookup(name, cache);
+    if (cached instanceof Integer) return values[(int)cached];
+    return cached;
+  }
 
-    LoxFunction method = klass.findMethod(name.lexeme);
-    if (method != null) return method.bind(this);
+  private Object lookup(Token name, InlineCache cache) {
+    Object cached = cache.lookup(shape);
+    if (cached == null) {
+      int index = shape.indexOf(name.symbol);
+      if (index != -1) {
+        cached = index;
+      } else {
+        cached = shape.klass.findMethod(name.symbol);
+        if (cached == null) {
+          throw new RuntimeError(name, 
+              "Undefined property '" + name.lexeme() + "'.");
+        }
+      }
+      cache.add(shape, cached);
+    }
 
-    throw new RuntimeError(name, 
-        "Undefined property '" + name.lexeme + "'.");
+    return cached;
   }
 
-  void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
+  // A Set site caches the slot of an existing field, or the shape to
+  // move to when the field is new.
+  void set(Token name, Object value, InlineCache cache) {
+    Object cached = cache.lookup(shape);
+    if (cached == null) {
+      int index = shape.indexOf(name.symbol);
+      if (index != -1) {
+        cached = index;
+      } else {
+        cached = shape.with(name.symbol);
+      }
+      cache.add(shape, cached);
+    }
+
+    if (cached instanceof Integer) {
+      values[(int)cached] = value;
+      return;
+    }
+
+    Shape next = (Shape)cached;
+    if (values.length < next.size) {
+      values = Arrays.copyOf(values, next.size);
+      // Later instances start with room for as many fields.
+      if (next.size > next.klass.instanceSize) {
+        next.klass.instanceSize = next.size;
+      }
+    }
+    values[next.size - 1] = value;
+    shape = next;
   }
 
   @Override
   public String toString() {
-    return klass.name + " instance";
+    return shape.klass.name + " instance";
   }
 }
-
@@ -0,0 +1,102 @@
+package com.craftinginterpreters.lox;
+
+// A string built by concatenation or repetition. Literals and strings
+// from natives stay Java Strings; a LoxString is what '+', '+=' and '*'
+// give back, so 's = s + x' in a loop doesn't copy 's' every time.
+//
+// A LoxString is the first 'length' characters of a StringBuilder that
+// is only ever appended to, so those characters never change. Appending
+// to the string that ends at the end of the builder appends in place
+// and shares the builder. Appending to an older, shorter string copies
+// its characters into a new builder first, which leaves the strings
+// sharing the old one alone. The flat String is made the first time
+// the string is compared, printed or otherwise read, and kept.
+final class LoxString implements CharSequence {
+  private StringBuilder builder;
+  private final int length;
+  private String flat;
+
+  private LoxString(StringBuilder builder) {
+    this.builder = builder;
+    this.length = builder.length();
+  }
+
+  static LoxString concat(CharSequence left, CharSequence right) {
+    if (left instanceof LoxString) {
+      return ((LoxString)left).append(right);
+    }
+
+    StringBuilder builder = new StringBuilder(
+        capacity(left.length() + right.length()));
+    builder.append(left).append(right.toString());
+    return new LoxString(builder);
+  }
+
+  // 'item' repeated 'count' times. The builder is sized once, so this
+  // takes time linear in the result.
+  static LoxString repeat(CharSequence item, int count) {
+    String text = item.toString();
+    StringBuilder builder = new StringBuilder(
+        capacity(Math.multiplyExact(text.length(), count)));
+    for (int i = 0; i < count; i++) builder.append(text);
+    return new LoxString(builder);
+  }
+
+  private LoxString append(CharSequence right) {
+    String text = right.toString();
+    StringBuilder target = builder;
+    if (target == null || target.length() != length) {
+      // Someone already appended past this string, or it was flattened.
+      target = new StringBuilder(capacity(length + text.length()));
+      target.append(toString());
+    }
+    target.append(text);
+    return new LoxString(target);
+  }
+
+  // Room to keep appending without growing right away.
+  private static int capacity(int length) {
+    return length < (Integer.MAX_VALUE >> 1) ? length * 2 : length;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (flat != null) return flat.charAt(index);
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException(index);
+    }
+    return builder.charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    if (flat == null) {
+      flat = builder.substring(0, length);
+      // Only the string at the end of the builder can still append to
+      // it; the others don't need it any more.
+      if (builder.length() != length) builder = null;
+    }
+    return flat;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof LoxString &&
+        toString().equals(other.toString());
+  }
+
+  @Override
+  public int hashCode() {
+    return toString().hashCode();
+  }
+}
@@ -0,0 +1,81 @@
+package com.craftinginterpreters.lox;
+
+// Instruction set of the bytecode VM. Opcodes are plain bytes so the
+// VM dispatch loop can switch on them directly. Operands follow the
+// opcode: "u8" is one byte, "u16" is two bytes, big-endian.
+final class OpCode {
+
+  private OpCode() {}
+
+  static final byte CONSTANT      = 0;  // u16 constant index
+  static final byte NIL           = 1;
+  static final byte TRUE          = 2;
+  static final byte FALSE         = 3;
+  static final byte POP           = 4;
+  static final byte DUP           = 5;
+  // Record the value on top of the stack as the last result, for the
+  // implicit display done when a script prints nothing.
+  static final byte RESULT        = 6;
+
+  static final byte GET_LOCAL     = 7;  // u8 slot
+  static final byte SET_LOCAL     = 8;  // u8 slot
+  static final byte GET_UPVALUE   = 9;  // u8 index
+  static final byte SET_UPVALUE   = 10; // u8 index
+  static final byte GET_GLOBAL    = 11; // u16 name
+  static final byte DEFINE_GLOBAL = 12; // u16 name
+  static final byte SET_GLOBAL    = 13; // u16 name
+  static final byte GET_PROPERTY  = 14; // u16 name
+  static final byte SET_PROPERTY  = 15; // u16 name
+  static final byte GET_SUPER     = 16; // u16 name
+
+  // Binary operators. The operator token of the line table tells
+  // the slow path which operator it is.
+  static final byte EQUAL         = 17;
+  static final byte NOT_EQUAL     = 18;
+  static final byte GREATER       = 19;
+  static final byte GREATER_EQUAL = 20;
+  static final byte LESS          = 21;
+  static final byte LESS_EQUAL    = 22;
+  static final byte ADD           = 23;
+  static final byte SUBTRACT      = 24;
+  static final byte MULTIPLY      = 25;
+  static final byte DIVIDE        = 26;
+  static final byte MODULO        = 27;
+  static final byte POWER         = 28;
+  static final byte BIT_AND       = 29;
+  static final byte BIT_OR        = 30;
+  static final byte BIT_XOR       = 31;
+  static final byte SHIFT_LEFT    = 32;
+  static final byte SHIFT_RIGHT   = 33;
+
+  // Unary operators.
+  static final byte NOT           = 34;
+  static final byte NEGATE        = 35;
+  static final byte UNARY_PLUS    = 36;
+  static final byte BIT_NOT       = 37;
+  static final byte INCREMENT     = 38;
+  static final byte DECREMENT     = 39;
+  // Compound assignment: pops the current value and the assigned value.
+  static final byte COMPOUND      = 40;
+
+  static final byte PRINT         = 41;
+  static final byte JUMP          = 42; // u16 forward offset
+  static final byte JUMP_IF_FALSE = 43; // u16 forward offset, pops
+  static final byte JUMP_IF_FALSE_OR_POP = 44; // u16 forward offset
+  static final byte JUMP_IF_TRUE_OR_POP  = 45; // u16 forward offset
+  static final byte LOOP          = 46; // u16 backward offset
+  static final byte CALL          = 47; // u8 argument count
+  // u16 function constant, then (u8 isLocal, u8 index) per upvalue.
+  static final byte CLOSURE       = 48;
+  static final byte CLOSE_UPVALUE = 49;
+  static final byte RETURN        = 50;
+  static final byte CLASS         = 51; // u16 name
+  static final byte INHERIT       = 52;
+  static final byte METHOD        = 53; // u16 name
+  // Raise a runtime error with a constant message.
+  static final byte THROW         = 54; // u16 message
+  // A call in a return statement, followed by a RETURN for callees that
+  // are not Lox functions.
+  static final byte TAIL_CALL     = 55; // u8 argument count
+
+}
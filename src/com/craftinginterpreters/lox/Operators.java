@@ -0,0 +1,536 @@
+package com.craftinginterpreters.lox;
+
+// Operator semantics shared by every execution engine, so the
+// tree-walker and the bytecode VM always agree on results and on
+// runtime error messages.
+//
+// A number is a Long when it is an integer, and a Double otherwise.
+// Integer arithmetic stays exact while results are within MAX_INTEGER,
+// the range where every integer is also exactly a double. A result
+// past it, or one that is not whole, becomes a Double, with the value
+// double arithmetic would have given. Bitwise operators work on all 64
+// bits, and their results stay integers even past MAX_INTEGER.
+class Operators {
+
+  static final long MAX_INTEGER = 1L << 53;
+
+  private Operators() {}
+
+  static boolean isTruthy(Object object) {
+    if (object == null) return false;
+    if (object instanceof Double) {
+      Double dbl = (Double)object;
+      if (dbl == 0) return false;
+    }
+    if (object instanceof Long) return (long)object != 0;
+    if (object instanceof Boolean) return (boolean)object;
+
+    return true;
+  }
+
+  static boolean isEqual(Object a, Object b) {
+    // nil is only equal to nil.
+    if (a == null && b == null) return true;
+    if (a == null) return false;
+
+    // An integer equals the double with the same value.
+    if (a instanceof Long && b instanceof Double ||
+        a instanceof Double && b instanceof Long) {
+      return Double.doubleToLongBits(toDouble(a)) ==
+          Double.doubleToLongBits(toDouble(b));
+    }
+
+    if (isString(a) && isString(b)) {
+      return a.toString().equals(b.toString());
+    }
+
+    return a.equals(b);
+  }
+
+  // Literals are Strings; concatenation and repetition give LoxStrings.
+  static boolean isString(Object object) {
+    return object instanceof String || object instanceof LoxString;
+  }
+
+  // A string operand as it is, anything else as it prints.
+  private static CharSequence text(Object object) {
+    if (object instanceof CharSequence) return (CharSequence)object;
+    return stringify(object);
+  }
+
+  static boolean isNumber(Object object) {
+    return object instanceof Long || object instanceof Double;
+  }
+
+  // adding: isInteger
+  static boolean isInteger(Object object) {
+      if (object instanceof Long) return true;
+      if (object instanceof Double) {
+          double val = (double)object;
+          return !Double.isInfinite(val) && (Math.floor(val) == val);
+      }
+
+      return false;
+
+  }
+
+  static double toDouble(Object number) {
+    return ((Number)number).doubleValue();
+  }
+
+  static long toLong(Object number) {
+    return ((Number)number).longValue();
+  }
+
+  // The number for an exact integer result.
+  static Object integer(long value) {
+    if (value > MAX_INTEGER || value < -MAX_INTEGER) return (double)value;
+    return value;
+  }
+
+  // The number for a double result that may be an integer.
+  static Object number(double value) {
+    if (value >= -MAX_INTEGER && value <= MAX_INTEGER &&
+        value == Math.rint(value)) {
+      return (long)value;
+    }
+    return value;
+  }
+
+  static void checkNumberOperand(Token operator, Object operand) {
+    if (isNumber(operand)) return;
+    throw new RuntimeError(operator, "Operand must be a number.");
+  }
+
+  static void checkNumberOperands(Token operator,
+                                   Object left, Object right) {
+    if (isNumber(left) && isNumber(right)) return;
+
+    throw new RuntimeError(operator, "Operands must be numbers.");
+  }
+
+  static String stringify(Object object) {
+    if (object == null) return "nil";
+
+    // Hack. Work around Java adding ".0" to integer-valued doubles.
+    // Integers are Longs, so this is only for results like 1.5 * 2.
+    if (object instanceof Double) {
+      String text = object.toString();
+      if (text.endsWith(".0")) {
+        text = text.substring(0, text.length() - 2);
+      }
+      return text;
+    }
+
+    return object.toString();
+  }
+
+  static Object multiplyString(Object item, double nb, Token op) {
+      if (nb % 1 != 0) throw new RuntimeError(op,
+              "String multiplier must be an integer");
+      if (nb <0) nb =0;
+      if (nb > Integer.MAX_VALUE) throw new RuntimeError(op,
+              "String multiplier is too large.");
+      try {
+        return LoxString.repeat(text(item), (int)nb);
+      } catch (ArithmeticException error) {
+        throw new RuntimeError(op, "String multiplier is too large.");
+      }
+  }
+
+  // Arithmetic on two numbers.
+
+  static Object add(long left, long right) {
+    long result = left + right;
+    // Overflow if both operands have the sign the result lacks.
+    if (((left ^ result) & (right ^ result)) < 0) {
+      return (double)left + (double)right;
+    }
+    return integer(result);
+  }
+
+  static Object subtract(long left, long right) {
+    long result = left - right;
+    if (((left ^ right) & (left ^ result)) < 0) {
+      return (double)left - (double)right;
+    }
+    return integer(result);
+  }
+
+  static Object multiply(long left, long right) {
+    long result = left * right;
+    if (Math.multiplyHigh(left, right) != (result >> 63)) {
+      return (double)left * (double)right;
+    }
+    return integer(result);
+  }
+
+  static Object add(Object left, Object right) {
+    if (left instanceof Long && right instanceof Long) {
+      return add((long)left, (long)right);
+    }
+    return toDouble(left) + toDouble(right);
+  }
+
+  static Object subtract(Object left, Object right) {
+    if (left instanceof Long && right instanceof Long) {
+      return subtract((long)left, (long)right);
+    }
+    return toDouble(left) - toDouble(right);
+  }
+
+  static Object multiply(Object left, Object right) {
+    if (left instanceof Long && right instanceof Long) {
+      return multiply((long)left, (long)right);
+    }
+    return toDouble(left) * toDouble(right);
+  }
+
+  // An integer divided by an integer stays one when it divides evenly.
+  static Object divide(Token operator, long left, long right) {
+    if (right == 0) {
+      throw new RuntimeError(operator, "Error: Division by zero.");
+    }
+    // Long.MIN_VALUE / -1 overflows.
+    if (right == -1) return subtract(0, left);
+    if (left % right == 0) return integer(left / right);
+    return (double)left / (double)right;
+  }
+
+  static Object divide(Token operator, Object left, Object right) {
+    if (left instanceof Long && right instanceof Long) {
+      return divide(operator, (long)left, (long)right);
+    }
+    return divide(operator, toDouble(left), toDouble(right));
+  }
+
+  static long modulo(Token operator, long left, long right) {
+    if (right != 0) return left % right;
+    throw new RuntimeError(operator, "Error: Division by zero.");
+  }
+
+  static Object modulo(Token operator, Object left, Object right) {
+    if (left instanceof Long && right instanceof Long) {
+      return modulo(operator, (long)left, (long)right);
+    }
+    return modulo(operator, toDouble(left), toDouble(right));
+  }
+
+  // Uses Math.pow() as double code would, then keeps a whole result of
+  // integers as an integer.
+  static Object power(Object left, Object right) {
+    double result = Math.pow(toDouble(left), toDouble(right));
+    if (left instanceof Long && right instanceof Long &&
+        (long)right >= 0) {
+      return number(result);
+    }
+    return result;
+  }
+
+  // The value of 'operand' after ++ or --.
+  static Object increment(Object operand, long delta) {
+    if (operand instanceof Long) return add((long)operand, delta);
+    return (double)operand + delta;
+  }
+
+  // Unary operators, except the prefix and postfix operators
+  // which need to assign their variable.
+  static Object unary(Token operator, Object right) {
+    switch (operator.type) {
+      case BANG:
+        return !isTruthy(right);
+
+      case MINUS:
+        checkNumberOperand(operator, right);
+        if (right instanceof Long) return subtract(0, (long)right);
+        return -(double)right;
+
+      case PLUS:
+        checkNumberOperand(operator, right);
+        return right;
+
+      case BIT_NOT:
+        if (isInteger(right)) {
+            return ~toLong(right);
+        }
+
+    throw new RuntimeError(operator, "RuntimeError: operand must be integer.");
+
+    }
+
+    // Unreachable.
+    return null;
+  }
+
+  // Compares two numbers, or two strings, as compareTo() does.
+  private static int compare(Token operator, Object left, Object right) {
+    if (left instanceof Long && right instanceof Long) {
+      return Long.compare((long)left, (long)right);
+    }
+    if (isNumber(left) && isNumber(right)) {
+      double a = toDouble(left);
+      double b = toDouble(right);
+      // Unlike Double.compare(), NaN is neither less nor greater.
+      if (a < b) return -1;
+      if (a > b) return 1;
+      return a == b ? 0 : 2;
+    }
+    if (isString(left) && isString(right)) {
+        return left.toString().compareTo(right.toString());
+    }
+    throw new RuntimeError(operator, "Comparison not supported for operands.");
+  }
+
+  static Object binary(Token operator, Object left, Object right) {
+    switch (operator.type) {
+      // adding: string comparison
+      case GREATER: {
+        int result = compare(operator, left, right);
+        return result > 0 && result != 2;
+      }
+
+      case GREATER_EQUAL: {
+        int result = compare(operator, left, right);
+        return result >= 0 && result != 2;
+      }
+
+      case LESSER:
+        return compare(operator, left, right) < 0;
+
+      case LESSER_EQUAL:
+        return compare(operator, left, right) <= 0;
+
+      case BANG_EQUAL:
+        if (isNumber(left) && isNumber(right)) {
+            return !isEqual(left, right);
+        }
+        if (isString(left) && isString(right)) {
+            return !isEqual(left, right);
+        }
+        throw new RuntimeError(operator, "Comparison not supported for operands.");
+
+      case EQUAL_EQUAL:
+        if (isNumber(left) && isNumber(right)) {
+            return isEqual(left, right);
+        }
+        if (isString(left) && isString(right)) {
+            return isEqual(left, right);
+        }
+        throw new RuntimeError(operator, "Comparison not supported for operands.");
+
+      case MINUS:
+        checkNumberOperands(operator, left, right);
+        return subtract(left, right);
+
+        // adding: concat string to number
+      case PLUS:
+        if (isNumber(left) && isNumber(right)) {
+          return add(left, right);
+        }
+        // converting everything to string
+        if (isString(left) || isString(right)) {
+          return LoxString.concat(text(left), text(right));
+        }
+        throw new RuntimeError(operator, "Operands must be numbers or strings.");
+
+      case SLASH:
+        checkNumberOperands(operator, left, right);
+        return divide(operator, left, right);
+
+      case STAR:
+        if (isNumber(left) && isNumber(right)) {
+            return multiply(left, right);
+        }
+        //
+        // Adding: String multiplication
+        if (isString(left) && isNumber(right)) {
+            return multiplyString(left, toDouble(right), operator);
+        }
+
+        if (isNumber(left) && isString(right)) {
+            return multiplyString(right, toDouble(left), operator);
+        }
+        throw new RuntimeError(operator, "Operands must be numbers.");
+
+      // Adding: EXP
+      case EXP:
+        checkNumberOperands(operator, left, right);
+        return power(left, right);
+
+
+    // adding: MOD, MOD_EQUAL
+    case MOD:
+        checkNumberOperands(operator, left, right);
+        return modulo(operator, left, right);
+
+    // Adding: bitwise operators
+    case BIT_OR:
+        if (isInteger(left) && isInteger(right)) {
+            return toLong(left) | toLong(right);
+        }
+        throw new RuntimeError(operator, "RuntimeError: operands must be integers.");
+
+    case BIT_AND:
+        if (isInteger(left) && isInteger(right)) {
+            return toLong(left) & toLong(right);
+        }
+        throw new RuntimeError(operator, "RuntimeError: operands must be integers.");
+
+    case BIT_XOR:
+        if (isInteger(left) && isInteger(right)) {
+            return toLong(left) ^ toLong(right);
+        }
+        throw new RuntimeError(operator, "RuntimeError: operands must be integers.");
+
+    case BIT_LEFT:
+        if (isInteger(left) && isInteger(right)) {
+            return toLong(left) << toLong(right);
+        }
+        throw new RuntimeError(operator, "RuntimeError: operands must be integers.");
+
+    case BIT_RIGHT:
+        if (isInteger(left) && isInteger(right)) {
+            return toLong(left) >> toLong(right);
+        }
+        throw new RuntimeError(operator, "RuntimeError: operands must be integers.");
+
+    // Adding: comma operator
+    case COMMA:
+        return right;
+
+    }
+
+    // Unreachable.
+    return null;
+  }
+
+  static double divide(Token operator, double left, double right) {
+    if (right != 0) return left / right;
+    // adding: error: Division by zero
+    throw new RuntimeError(operator, "Error: Division by zero.");
+  }
+
+  static double modulo(Token operator, double left, double right) {
+    if (right != 0) return left % right;
+    // adding: error: Division by zero
+    throw new RuntimeError(operator,  "Error: Division by zero.");
+  }
+
+  // Compound assignment: combine the current value of the target
+  // with the assigned value, according to the operator in 'equals'.
+  static Object compound(Token equals, Object cur, Object value) {
+   switch (equals.type) {
+       case EQUAL: break;
+
+        // Adding: compound assignment
+       case PLUS_EQUAL: {
+            if (isNumber(cur) && isNumber(value)) {
+                value = add(cur, value);
+                break;
+            }
+            if (isString(cur) || isString(value)) {
+                value = LoxString.concat(text(cur), text(value));
+                break;
+            }
+
+            throw new RuntimeError(equals, "Operands must be numbers or strings.");
+
+       }
+
+       case MINUS_EQUAL: {
+            checkNumberOperands(equals, cur, value);
+            value = subtract(cur, value);
+            break;
+       }
+
+
+       // Unlike '/', '/=' by zero gives an infinity or NaN.
+       case SLASH_EQUAL: {
+            checkNumberOperands(equals, cur, value);
+            if (isTruthy(value)) {
+                value = divide(equals, cur, value);
+            } else {
+                value = toDouble(cur) / toDouble(value);
+            }
+            break;
+       }
+
+       case STAR_EQUAL: {
+            if (isNumber(cur) && isNumber(value)) {
+                value = multiply(cur, value);
+                break;
+            }
+
+            if (isString(cur) && isNumber(value)) {
+                value = multiplyString(cur, toDouble(value), equals);
+                break;
+            }
+
+            throw new RuntimeError(equals, "Operands must be numbers or strings.");
+
+       }
+
+       case MOD_EQUAL: {
+            checkNumberOperands(equals, cur, value);
+            if (isTruthy(value)) {
+                value = modulo(equals, cur, value);
+            } else {
+                value = toDouble(cur) % toDouble(value);
+            }
+            break;
+       }
+
+       case EXP_EQUAL: {
+            checkNumberOperands(equals, cur, value);
+            value = power(cur, value);
+            break;
+       }
+
+       // Adding: bitwise operators
+       case BIT_OR_EQUAL: {
+          if (isInteger(cur) && isInteger(value)) {
+            value = toLong(cur) | toLong(value);
+            break;
+          }
+          throw new RuntimeError(equals, "RuntimeError: operands must be integers.");
+       }
+
+       case BIT_AND_EQUAL:  {
+          if (isInteger(cur) && isInteger(value)) {
+            value = toLong(cur) & toLong(value);
+            break;
+          }
+          throw new RuntimeError(equals, "RuntimeError Man: operands must be integers.");
+       }
+
+       case BIT_XOR_EQUAL:  {
+          if (isInteger(cur) && isInteger(value)) {
+            value = toLong(cur) ^ toLong(value);
+            break;
+          }
+          throw new RuntimeError(equals, "RuntimeError Man: operands must be integers.");
+       }
+
+       // Adding: bitwise shift operators
+       case BIT_LEFT_EQUAL: {
+          if (isInteger(cur) && isInteger(value)) {
+            value = toLong(cur) << toLong(value);
+            break;
+          }
+          throw new RuntimeError(equals, "RuntimeError Man: operands must be integers.");
+       }
+
+       case BIT_RIGHT_EQUAL: {
+          if (isInteger(cur) && isInteger(value)) {
+            value = toLong(cur) >> toLong(value);
+            break;
+          }
+          throw new RuntimeError(equals, "RuntimeError Man: operands must be integers.");
+       }
+
+    }
+
+    return value;
+  }
+
+}
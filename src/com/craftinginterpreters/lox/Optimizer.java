@@ -0,0 +1,408 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Rewrites the resolved AST into a cheaper one with the same behavior.
+// It runs after the Resolver, so errors are still reported for the code
+// as written, and before any engine, which all run its output. Turned
+// off with --no-optimize to compare outputs.
+//
+// - Constant subtrees are folded with Operators, the same code that
+//   would run them. A fold that raises an error, like a division by
+//   zero, is left in place to raise it at run time.
+// - Branches and loops with a constant condition lose the code that
+//   can never run, and so do statements after a return, break or
+//   continue.
+// - 'x ** 2' becomes 'x * x', which gives the same results and errors
+//   without a call to Math.pow().
+//
+// Nodes are immutable, so a node with a rewritten child is copied,
+// along with what the Resolver filled in. Unchanged subtrees are kept.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  // Number of functions around the code being optimized. At the top
+  // level, the last value a statement evaluates is printed when the
+  // script prints nothing, so a constant condition is still evaluated
+  // there instead of being dropped.
+  private int functionDepth = 0;
+
+  List<Stmt> optimize(List<Stmt> statements) {
+    List<Stmt> optimized = new ArrayList<>();
+    for (Stmt statement : statements) {
+      Stmt result = optimize(statement);
+      if (result != null) optimized.add(result);
+
+      // Nothing after these runs.
+      if (result instanceof Stmt.Return || result instanceof Stmt.Break) {
+        break;
+      }
+    }
+
+    return optimized.equals(statements) ? statements : optimized;
+  }
+
+  // The body of a function loaded on its first call (--lazy).
+  List<Stmt> optimizeBody(List<Stmt> body) {
+    functionDepth++;
+    List<Stmt> optimized = optimize(body);
+    functionDepth--;
+    return optimized;
+  }
+
+  // Returns null for a statement that does nothing.
+  private Stmt optimize(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Expr optimize(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private List<Expr> optimizeAll(List<Expr> exprs) {
+    List<Expr> optimized = new ArrayList<>();
+    for (Expr expr : exprs) optimized.add(optimize(expr));
+    return optimized.equals(exprs) ? exprs : optimized;
+  }
+
+  // A branch or loop body can't be left out, so one that does nothing
+  // becomes an empty block.
+  private Stmt optimizeBody(Stmt stmt) {
+    Stmt result = optimize(stmt);
+    return result != null ? result : new Stmt.Block(new ArrayList<>());
+  }
+
+  // What is left of a branch or loop whose condition is 'condition'
+  // and which runs 'body', or null if it runs nothing.
+  private Stmt constantCondition(Expr condition, Stmt body) {
+    if (functionDepth > 0) return body;
+
+    Stmt evaluate = new Stmt.Expression(condition);
+    if (body == null) return evaluate;
+    return new Stmt.Block(Arrays.asList(evaluate, body));
+  }
+
+  private static boolean isConstant(Expr expr) {
+    return expr instanceof Expr.Literal;
+  }
+
+  private static Object valueOf(Expr expr) {
+    return ((Expr.Literal)expr).value;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    List<Stmt> statements = optimize(stmt.statements);
+    if (statements == stmt.statements) return stmt;
+    return new Stmt.Block(statements);
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = new ArrayList<>();
+    for (Stmt.Function method : stmt.methods) {
+      methods.add((Stmt.Function)optimize(method));
+    }
+    if (methods.equals(stmt.methods)) return stmt;
+
+    Stmt.Class result = new Stmt.Class(stmt.name, stmt.superclass, methods);
+    result.slot = stmt.slot;
+    result.isGlobal = stmt.isGlobal;
+    result.isCaptured = stmt.isCaptured;
+    result.superSlot = stmt.superSlot;
+    return result;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    // A constant has no effect, except on the value printed at the
+    // end of a script.
+    if (isConstant(expression) && functionDepth > 0) return null;
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Expr.Function function = (Expr.Function)optimize(stmt.function);
+    if (function == stmt.function) return stmt;
+
+    Stmt.Function result = new Stmt.Function(stmt.name, function);
+    result.slot = stmt.slot;
+    result.isGlobal = stmt.isGlobal;
+    result.isCaptured = stmt.isCaptured;
+    return result;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (isConstant(condition)) {
+      Stmt branch = Operators.isTruthy(valueOf(condition))
+          ? stmt.thenBranch : stmt.elseBranch;
+      return constantCondition(condition,
+          branch == null ? null : optimize(branch));
+    }
+
+    Stmt thenBranch = optimizeBody(stmt.thenBranch);
+    Stmt elseBranch = stmt.elseBranch == null
+        ? null : optimizeBody(stmt.elseBranch);
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+        elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return stmt;
+
+    Expr value = optimize(stmt.value);
+    if (value == stmt.value) return stmt;
+
+    Stmt.Return result = new Stmt.Return(stmt.keyword, value);
+    result.isTailCall = stmt.isTailCall;
+    return result;
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) return stmt;
+
+    Expr initializer = optimize(stmt.initializer);
+    if (initializer == stmt.initializer) return stmt;
+
+    Stmt.Var result = new Stmt.Var(stmt.name, initializer);
+    result.slot = stmt.slot;
+    result.isGlobal = stmt.isGlobal;
+    result.isCaptured = stmt.isCaptured;
+    return result;
+  }
+
+  @Override
+  public Stmt visitForStmt(Stmt.For stmt) {
+    Stmt initializer = stmt.initializer == null
+        ? null : optimize(stmt.initializer);
+    Expr condition = optimize(stmt.condition);
+    if (isConstant(condition) && !Operators.isTruthy(valueOf(condition))) {
+      // The initializer still runs, in the loop's own scope.
+      Stmt rest = constantCondition(condition, null);
+      if (initializer == null) return rest;
+      if (rest == null) return new Stmt.Block(Arrays.asList(initializer));
+      return new Stmt.Block(Arrays.asList(initializer, rest));
+    }
+
+    Expr increment = stmt.increment == null
+        ? null : optimize(stmt.increment);
+    Stmt body = optimizeBody(stmt.body);
+    if (initializer == stmt.initializer && condition == stmt.condition &&
+        increment == stmt.increment && body == stmt.body) {
+      return stmt;
+    }
+    return new Stmt.For(initializer, condition, increment, body);
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (isConstant(condition) && !Operators.isTruthy(valueOf(condition))) {
+      return constantCondition(condition, null);
+    }
+
+    Stmt body = optimizeBody(stmt.body);
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(condition, body);
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = optimize(expr.value);
+    if (value == expr.value) return expr;
+
+    Expr.Assign result = new Expr.Assign(expr.name, expr.equals, value);
+    result.slot = expr.slot;
+    result.isGlobal = expr.isGlobal;
+    result.isCaptured = expr.isCaptured;
+    result.isUpvalue = expr.isUpvalue;
+    return result;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+    Token operator = expr.operator;
+
+    if (isConstant(left) && isConstant(right) &&
+        !isRepetition(operator, left, right)) {
+      try {
+        // A folded concatenation is a literal like any other: a String.
+        Object value = Operators.binary(operator, valueOf(left),
+            valueOf(right));
+        if (value instanceof LoxString) value = value.toString();
+        return new Expr.Literal(value);
+      } catch (RuntimeError error) {
+        // Left for the error to happen at run time.
+      }
+    }
+
+    // A constant on the left of a comma has no effect.
+    if (operator.type == TokenType.COMMA && isConstant(left)) return right;
+
+    // Both operators give the same errors for operands that are not
+    // numbers, and reading a variable twice has no side effect.
+    if (operator.type == TokenType.EXP && left instanceof Expr.Variable &&
+        isConstant(right) && Long.valueOf(2).equals(valueOf(right))) {
+      Token star = new Token(TokenType.STAR, "*", null,
+          operator.line, operator.col);
+      return new Expr.Binary(left, star, left);
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, operator, right);
+  }
+
+  // A repeated string can be huge, so it is only built if the code
+  // actually runs.
+  private static boolean isRepetition(Token operator, Expr left,
+                                      Expr right) {
+    return operator.type == TokenType.STAR &&
+        (Operators.isString(valueOf(left)) ||
+         Operators.isString(valueOf(right)));
+  }
+
+  @Override
+  public Expr visitTernaryExpr(Expr.Ternary expr) {
+    Expr condition = optimize(expr.condition);
+    if (isConstant(condition)) {
+      return optimize(Operators.isTruthy(valueOf(condition))
+          ? expr.thenBranch : expr.elseBranch);
+    }
+
+    Expr thenBranch = optimize(expr.thenBranch);
+    Expr elseBranch = optimize(expr.elseBranch);
+    if (condition == expr.condition && thenBranch == expr.thenBranch &&
+        elseBranch == expr.elseBranch) {
+      return expr;
+    }
+    return new Expr.Ternary(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = optimize(expr.callee);
+    List<Expr> arguments = optimizeAll(expr.arguments);
+    if (callee == expr.callee && arguments == expr.arguments) return expr;
+    return new Expr.Call(callee, expr.paren, arguments);
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = optimize(expr.object);
+    if (object == expr.object) return expr;
+    return new Expr.Get(object, expr.name);
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    // Optimized when it is loaded.
+    if (expr.lazy != null) return expr;
+
+    functionDepth++;
+    List<Stmt> body = optimize(expr.body);
+    functionDepth--;
+    if (body == expr.body) return expr;
+
+    Expr.Function result = new Expr.Function(expr.params, body);
+    result.slotCount = expr.slotCount;
+    result.capturedParams = expr.capturedParams;
+    result.upvalueIsLocal = expr.upvalueIsLocal;
+    result.upvalueIndexes = expr.upvalueIndexes;
+    return result;
+  }
+
+  // The parentheses only mattered to the parser.
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    return optimize(expr.expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    if (isConstant(left)) {
+      boolean isTruthy = Operators.isTruthy(valueOf(left));
+      boolean isOr = expr.operator.type == TokenType.OR;
+      return isTruthy == isOr ? left : right;
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = optimize(expr.object);
+    Expr value = optimize(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+    return new Expr.Set(object, expr.name, value);
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    TokenType type = expr.operator.type;
+    // These check that their operand is a variable, as written.
+    if (type == TokenType.PLUS_PLUS || type == TokenType.MINUS_MINUS) {
+      return expr;
+    }
+
+    Expr right = optimize(expr.right);
+    if (isConstant(right)) {
+      try {
+        return new Expr.Literal(
+            Operators.unary(expr.operator, valueOf(right)));
+      } catch (RuntimeError error) {
+        // Left for the error to happen at run time.
+      }
+    }
+
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right, expr.isPostfix);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+}
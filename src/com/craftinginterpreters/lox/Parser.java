@@ -1,7 +1,6 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static com.craftinginterpreters.lox.TokenType.*;
@@ -10,11 +9,18 @@ class Parser {
 
   private static class ParseError extends RuntimeException {}
 
-  private final List<Token> tokens;
+  // Tokens are scanned as the parser gets to them.
+  private final Scanner scanner;
   private int current = 0;
+  // Whether to pre-parse top-level functions and methods, leaving their
+  // bodies for their first call (--lazy). Their tokens stay in the
+  // scanner until then.
+  boolean isLazy = false;
+  // Number of blocks and function bodies around the current code.
+  private int blockDepth = 0;
 
-  Parser(List<Token> tokens) {
-    this.tokens = tokens;
+  Parser(Scanner scanner) {
+    this.scanner = scanner;
   }
 
   List<Stmt> parse() {
@@ -136,6 +142,27 @@ class Parser {
     return statements;
   }
 
+  // Whether the script has no more declarations, for --stream.
+  boolean isDone() {
+    return isAtEnd();
+  }
+
+  // Parses the next top-level declaration, for --stream, and lets the
+  // scanner drop its tokens. Null after a syntax error.
+  Stmt parseDeclaration() {
+    Stmt statement = declaration();
+    // Keep the last token, which previous() may still look at.
+    scanner.release(current - 1);
+    return statement;
+  }
+
+  // Parses the body of a pre-parsed function, from the token after its
+  // '{' to its '}'.
+  List<Stmt> parseBody(int start) {
+    current = start;
+    return block();
+  }
+
   private Stmt declaration() {
     /* declaration → classDecl
      *      | funDecl
@@ -177,9 +204,17 @@ class Parser {
 
     consume(LEFT_BRACE, "Expect '{' before class body.");
 
+    // The methods of a subclass capture "super", which is only known
+    // from their bodies.
+    boolean wasLazy = isLazy;
+    if (superclass != null) isLazy = false;
     List<Stmt.Function> methods = new ArrayList<>();
-    while (!check(RIGHT_BRACE) && !isAtEnd()) {
-      methods.add(function("method"));
+    try {
+      while (!check(RIGHT_BRACE) && !isAtEnd()) {
+        methods.add(function("method"));
+      }
+    } finally {
+      isLazy = wasLazy;
     }
 
     consume(RIGHT_BRACE, "Expect '}' after class body.");
@@ -251,20 +286,8 @@ class Parser {
 
     Stmt body = statement();
 
-    if (increment != null) {
-      body = new Stmt.Block(Arrays.asList(
-          body,
-          new Stmt.Expression(increment)));
-    }
-
     if (condition == null) condition = new Expr.Literal(true);
-    body = new Stmt.While(condition, body);
-
-    if (initializer != null) {
-      body = new Stmt.Block(Arrays.asList(initializer, body));
-    }
-
-    return body;
+    return new Stmt.For(initializer, condition, increment, body);
 
   }
   
@@ -361,12 +384,25 @@ class Parser {
   private Stmt.Function function(String kind) {
     // function → IDENTIFIER "(" parameters? ")" block ;
       Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+      if (isLazy && blockDepth == 0) {
+        return new Stmt.Function(name, preParse(kind));
+      }
       return new Stmt.Function(name, functionBody(kind));
   }
 
   private Expr.Function functionBody(String kind) {
     // functionBody → "(" parameters? ")" block ;
 
+    List<Token> parameters = parameters(kind);
+
+    // manage Automatic semicolon insertion
+    // match(SEMICOLON);
+    consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+    List<Stmt> body = block();
+    return new Expr.Function(parameters, body);
+  }
+
+  private List<Token> parameters(String kind) {
     consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
     List<Token> parameters = new ArrayList<>();
     if (!check(RIGHT_PAREN)) {
@@ -379,12 +415,29 @@ class Parser {
       } while (match(COMMA));
     }
     consume(RIGHT_PAREN, "Expect ')' after parameters.");
+    return parameters;
+  }
 
-    // manage Automatic semicolon insertion
-    // match(SEMICOLON);
-    consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-    List<Stmt> body = block();
-    return new Expr.Function(parameters, body);
+  // Like functionBody(), but only matches the braces of the body. Its
+  // statements are added when it is loaded.
+  private Expr.Function preParse(String kind) {
+    List<Token> parameters = parameters(kind);
+    Token brace = consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+    int start = current;
+    int depth = 1;
+    while (!isAtEnd()) {
+      TokenType type = advance().type;
+      if (type == LEFT_BRACE) {
+        depth++;
+      } else if (type == RIGHT_BRACE && --depth == 0) {
+        Expr.Function function =
+            new Expr.Function(parameters, new ArrayList<>());
+        function.lazy = new LazyBody(scanner, brace, start);
+        return function;
+      }
+    }
+
+    throw error(peek(), "Expect '}' after block.");
   }
   
   private List<Stmt> block() {
@@ -392,8 +445,15 @@ class Parser {
     
     List<Stmt> statements = new ArrayList<>();
 
-    while (!check(RIGHT_BRACE) && !isAtEnd()) {
-      statements.add(declaration());
+    // Restored even if a parse error unwinds through here, or no later
+    // function would be pre-parsed.
+    blockDepth++;
+    try {
+      while (!check(RIGHT_BRACE) && !isAtEnd()) {
+        statements.add(declaration());
+      }
+    } finally {
+      blockDepth--;
     }
 
     consume(RIGHT_BRACE, "Expect '}' after block.");
@@ -877,8 +937,8 @@ class Parser {
 
   private boolean checkNext(TokenType tokenType) {
     if (isAtEnd()) return false;
-    if (tokens.get(current + 1).type == EOF) return false;
-    return tokens.get(current + 1).type == tokenType;
+    if (scanner.token(current + 1).type == EOF) return false;
+    return scanner.token(current + 1).type == tokenType;
   }
 
   private Token advance() {
@@ -891,11 +951,11 @@ class Parser {
   }
 
   private Token peek() {
-    return tokens.get(current);
+    return scanner.token(current);
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return scanner.token(current - 1);
   }
 
   private ParseError error(Token token, String message) {
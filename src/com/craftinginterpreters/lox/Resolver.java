@@ -1,5 +1,6 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,10 +11,55 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   private static class Variable {
     final Token name;
     VariableState state;
-
-    private Variable(Token name, VariableState state) {
+    // Index of the variable in its function's frame.
+    final int slot;
+    // Number of functions around the declaration.
+    final int functionDepth;
+    // The node declaring the variable, told whether it is captured
+    // once its scope ends. Null for "super".
+    final Object declaration;
+    // Set when a nested function uses the variable. Its frame slot
+    // then holds a cell, which closures share.
+    boolean isCaptured = false;
+    // Uses of the variable in its own function.
+    final List<Expr> references = new ArrayList<>();
+
+    private Variable(Token name, VariableState state, int slot,
+                     int functionDepth, Object declaration) {
       this.name = name;
       this.state = state;
+      this.slot = slot;
+      this.functionDepth = functionDepth;
+      this.declaration = declaration;
+    }
+  }
+
+  private static class Scope {
+    final Map<String, Variable> variables = new HashMap<>();
+    // The variables in declaration order.
+    final List<Variable> declared = new ArrayList<>();
+    // First frame slot of the scope. Its slots are free again after it.
+    final int firstSlot;
+
+    private Scope(int firstSlot) {
+      this.firstSlot = firstSlot;
+    }
+  }
+
+  // A function being resolved, and the variables of enclosing
+  // functions it uses: its upvalues. An upvalue comes either from a
+  // frame slot of the function just around it (isLocal) or from one of
+  // that function's own upvalues.
+  private static class Closure {
+    final Closure enclosing;
+    final int functionDepth;
+    final List<Variable> upvalues = new ArrayList<>();
+    final List<Boolean> isLocal = new ArrayList<>();
+    final List<Integer> indexes = new ArrayList<>();
+
+    private Closure(Closure enclosing, int functionDepth) {
+      this.enclosing = enclosing;
+      this.functionDepth = functionDepth;
     }
   }
 
@@ -36,15 +82,23 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     SUBCLASS
   }
 
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Variable>> scopes = new Stack<>();
+  private final Stack<Scope> scopes = new Stack<>();
   Boolean isDebug = false;
   private FunctionType currentFunction = FunctionType.NONE;
   private ClassType currentClass = ClassType.NONE;
-
-  Resolver(Interpreter interpreter) {
+  // Number of loops around the current statement, in this function.
+  private int loopDepth = 0;
+  // Number of functions around the current code.
+  private int functionDepth = 0;
+  // Next free slot in the current function's frame, and the number of
+  // slots it needs so far.
+  private int frameSlot = 0;
+  private int frameSize = 0;
+  // The innermost function being resolved, null at the top level.
+  private Closure closure = null;
+
+  Resolver() {
    // debug("Resolver: ");
-    this.interpreter = interpreter;
   }
 
   void debug(String msg) {
@@ -54,6 +108,23 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     
   }
 
+  // Frame slots needed by blocks at the top level of the script.
+  int scriptFrameSize() {
+    return frameSize;
+  }
+
+  // Resolves the body of a top-level function loaded on its first call
+  // (--lazy). 'klass' is the class of a method, null otherwise.
+  void resolveBody(Expr.Function function, Token klass,
+                   boolean isInitializer) {
+    FunctionType type = FunctionType.FUNCTION;
+    if (klass != null) {
+      currentClass = ClassType.CLASS;
+      type = isInitializer ? FunctionType.INITIALIZER : FunctionType.METHOD;
+    }
+    resolveFunction(function, type, klass);
+  }
+
   void resolve(List<Stmt> statements) {
    // debug("\nTopLevel Resolver");
    // debug("Resolve statement list");
@@ -80,11 +151,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
 
-    declare(stmt.name);
+    declare(stmt.name, stmt);
     define(stmt.name);
 
     if (stmt.superclass != null &&
-        stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+        stmt.name.lexeme().equals(stmt.superclass.name.lexeme())) {
       Lox.error(stmt.superclass.name,
           "A class cannot inherit from itself.");
     }
@@ -98,25 +169,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       beginScope();
       // FIXE: see for variablestate 
       // Using READ as State to not generate "local variable inused" as error;.
-      scopes.peek().put("super", new Variable(stmt.superclass.name, VariableState.READ));
+      // Only methods use "super", so it is always captured.
+      stmt.superSlot = frameSlot;
+      declareHidden("super", stmt.superclass.name, null).isCaptured = true;
     }
 
-    beginScope();
-    // FIXE: pass token of "this" by argument
-    // Adding: VariableState 
-    // Using State READ for "this" to not generate an error for variable inused
-    scopes.peek().put("this", new Variable(stmt.name, VariableState.READ));
-
     for (Stmt.Function method : stmt.methods) {
       FunctionType declaration = FunctionType.METHOD;
-      if (method.name.lexeme.equals("init")) {
+      if (method.name.lexeme().equals("init")) {
         declaration = FunctionType.INITIALIZER;
       }
-      resolveFunction(method.function, declaration); 
+      resolveFunction(method.function, declaration, stmt.name); 
     }
 
-    endScope();
-
     if (stmt.superclass != null) endScope();
     currentClass = enclosingClass;
 
@@ -133,10 +198,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
    // debug("visitFunctionStmt");
-    declare(stmt.name);
+    declare(stmt.name, stmt);
     define(stmt.name);
 
-    resolveFunction(stmt.function, FunctionType.FUNCTION);
+    resolveFunction(stmt.function, FunctionType.FUNCTION, null);
     return null;
   }
 
@@ -168,6 +233,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       }
 
       resolve(stmt.value);
+      // Nothing is left to do in this function once the call returns.
+      stmt.isTailCall = stmt.value instanceof Expr.Call &&
+          currentFunction != FunctionType.NONE;
     }
 
     return null;
@@ -176,7 +244,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
    // debug("visitVarStmt");
-    declare(stmt.name);
+    declare(stmt.name, stmt);
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -184,11 +252,28 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  // The initializer's variable is scoped to the loop, as if the loop
+  // were in a block of its own.
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    beginScope();
+    if (stmt.initializer != null) resolve(stmt.initializer);
+    resolve(stmt.condition);
+    if (stmt.increment != null) resolve(stmt.increment);
+    loopDepth++;
+    resolve(stmt.body);
+    loopDepth--;
+    endScope();
+    return null;
+  }
+
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
    // debug("visitWhileStmt");
     resolve(stmt.condition);
+    loopDepth++;
     resolve(stmt.body);
+    loopDepth--;
     return null;
   }
   
@@ -197,7 +282,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitBreakStmt(Stmt.Break stmt) {
     
    // debug("visitBreakStmt");
-    
+    stmt.isInLoop = loopDepth > 0;
     return null;
   }
 
@@ -205,7 +290,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitAssignExpr(Expr.Assign expr) {
    // debug("visitAssignExpr");
     resolve(expr.value);
-    resolveLocal(expr, expr.name, false);
+    resolveLocal(expr, expr.name.lexeme(), false);
     return null;
   }
 
@@ -250,7 +335,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitFunctionExpr(Expr.Function expr) {
    // debug("visitFunctionExpr");
-    resolveFunction(expr, FunctionType.FUNCTION);
+    resolveFunction(expr, FunctionType.FUNCTION, null);
     return null;
 
   }
@@ -294,8 +379,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
           "Cannot use 'super' in a class with no superclass.");
     }
     // Adding: ...
-    resolveLocal(expr, expr.keyword, true);
-    
+    resolveLocal(expr, expr.keyword.lexeme(), true);
+    // The method is bound to 'this', which is looked up like any
+    // other use of it.
+    if (currentClass != ClassType.NONE) {
+      expr.receiver = new Expr.This(new Token(TokenType.THIS, "this",
+          null, expr.keyword.line, expr.keyword.col));
+      resolve(expr.receiver);
+    }
+
     return null;
   }
 
@@ -308,7 +400,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       return null;
     }
 
-    resolveLocal(expr, expr.keyword, true);
+    resolveLocal(expr, expr.keyword.lexeme(), true);
     return null;
   }
 
@@ -323,13 +415,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitVariableExpr(Expr.Variable expr) {
    // debug("visitVariableExpr");
     if (!scopes.isEmpty() &&
-            scopes.peek().containsKey(expr.name.lexeme) &&
-            scopes.peek().get(expr.name.lexeme).state == VariableState.DECLARED) {
+            scopes.peek().variables.containsKey(expr.name.lexeme()) &&
+            scopes.peek().variables.get(expr.name.lexeme()).state == VariableState.DECLARED) {
           Lox.error(expr.name,
               "Cannot read local variable in its own initializer.");
     }
 
-    resolveLocal(expr, expr.name, true);
+    resolveLocal(expr, expr.name.lexeme(), true);
     return null;
   }
 
@@ -338,20 +430,65 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     stmt.accept(this);
   }
 
+  // 'klass' is the name of the class for a method, null otherwise.
   private void resolveFunction(
-      Expr.Function function, FunctionType type) {
+      Expr.Function function, FunctionType type, Token klass) {
+    if (function.lazy != null) {
+      // Resolved once it is loaded. At the top level, there is nothing
+      // around it to capture.
+      function.lazy.klass = klass;
+      function.lazy.isInitializer = type == FunctionType.INITIALIZER;
+      function.upvalueIsLocal = new boolean[0];
+      function.upvalueIndexes = new int[0];
+      return;
+    }
+
     FunctionType enclosingFunction = currentFunction;
     currentFunction = type;
+    // A loop outside the function cannot be left from inside it.
+    int enclosingLoopDepth = loopDepth;
+    loopDepth = 0;
+    // The function gets a frame of its own.
+    int enclosingFrameSlot = frameSlot;
+    int enclosingFrameSize = frameSize;
+    frameSlot = 0;
+    frameSize = 0;
+    functionDepth++;
+    closure = new Closure(closure, functionDepth);
+
+    // Which of "this" and the parameters are captured, in frame order.
+    int count = function.params.size() + (klass != null ? 1 : 0);
+    function.capturedParams = new boolean[count];
 
    // debug("resolveFunction before beginscope");
     beginScope();
+    if (klass != null) {
+      // A method gets its receiver as "this", in slot 0 before the
+      // parameters.
+      declareHidden("this", klass, function);
+    }
     for (Token param : function.params) {
-      declare(param);
+      declare(param, function);
       define(param);
     }
     resolve(function.body);
     endScope();
+    function.slotCount = frameSize;
+
+    int upvalueCount = closure.upvalues.size();
+    function.upvalueIsLocal = new boolean[upvalueCount];
+    function.upvalueIndexes = new int[upvalueCount];
+    for (int i = 0; i < upvalueCount; i++) {
+      function.upvalueIsLocal[i] = closure.isLocal.get(i);
+      function.upvalueIndexes[i] = closure.indexes.get(i);
+    }
+
+    closure = closure.enclosing;
+    functionDepth--;
+    frameSlot = enclosingFrameSlot;
+    frameSize = enclosingFrameSize;
     currentFunction = enclosingFunction;
+    loopDepth = enclosingLoopDepth;
    // debug("resolveFunction after endscope");
   }
 
@@ -363,49 +500,86 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
  
   private void beginScope() {
    // debug("beginScope");
-    scopes.push(new HashMap<String, Variable>());
+    scopes.push(new Scope(frameSlot));
   }
 
+  // Tells the declarations and uses of the scope's variables whether
+  // they are captured, which is only known once the scope ends.
   private void endScope() {
    // debug("endScope");
-    Map<String, Variable> scope = scopes.pop();
+    Scope scope = scopes.pop();
 
         // FIXE: variables inused
-        for (Map.Entry<String, Variable> entry : scope.entrySet()) {
+        for (Map.Entry<String, Variable> entry : scope.variables.entrySet()) {
           if (entry.getValue().state == VariableState.DEFINED) {
             Lox.error(entry.getValue().name, "Local variable is not used.");
           }
         }
+
+    for (Variable variable : scope.declared) {
+      locateDeclaration(variable);
+      for (Expr reference : variable.references) {
+        locate(reference, variable.slot, variable.isCaptured, false);
+      }
+    }
+
+    frameSlot = scope.firstSlot;
   }
 
-  private void declare(Token name) {
+  private void declare(Token name, Object declaration) {
    // debug("declare name");
     if (scopes.isEmpty()) return;
 
-    Map<String, Variable> scope = scopes.peek();
-    if (scope.containsKey(name.lexeme)) {
+    Scope scope = scopes.peek();
+    if (scope.variables.containsKey(name.lexeme())) {
       Lox.error(name,
           "Variable with this name already declared in this scope.");
     }
 
-    scope.put(name.lexeme, new Variable(name, VariableState.DECLARED));
+    addVariable(scope, name.lexeme(),
+        new Variable(name, VariableState.DECLARED, frameSlot,
+            functionDepth, declaration));
+  }
+
+  // Declares "this" or "super", which are never reported unused.
+  private Variable declareHidden(String name, Token token,
+                                 Object declaration) {
+    return addVariable(scopes.peek(), name,
+        new Variable(token, VariableState.READ, frameSlot,
+            functionDepth, declaration));
+  }
+
+  private Variable addVariable(Scope scope, String name,
+                               Variable variable) {
+    scope.variables.put(name, variable);
+    scope.declared.add(variable);
+    frameSlot++;
+    frameSize = Math.max(frameSize, frameSlot);
+    return variable;
   }
 
   private void define(Token name) {
    // debug("define name");
     if (scopes.isEmpty()) return;
-    scopes.peek().get(name.lexeme).state = VariableState.DEFINED;
+    scopes.peek().variables.get(name.lexeme()).state = VariableState.DEFINED;
   }
 
-  private void resolveLocal(Expr expr, Token name, boolean isRead) {
+  // Records 'expr' as a use of the local variable 'name'. Leaves it
+  // global if there is no such local.
+  private void resolveLocal(Expr expr, String name, boolean isRead) {
    // debug("resolveLocal expr");
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-
+      Variable variable = scopes.get(i).variables.get(name);
+      if (variable != null) {
         // Mark it used.
         if (isRead) {
-          scopes.get(i).get(name.lexeme).state = VariableState.READ;
+          variable.state = VariableState.READ;
+        }
+        if (variable.functionDepth == functionDepth) {
+          variable.references.add(expr);
+        } else {
+          variable.isCaptured = true;
+          locate(expr, resolveUpvalue(closure, variable), false, true);
         }
         return;
       }
@@ -414,6 +588,76 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // Not found. Assume it is global.
   }
 
+  // Returns the index of 'variable' in the upvalues of 'closure',
+  // adding it there and to the functions in between if needed.
+  private int resolveUpvalue(Closure closure, Variable variable) {
+    int index = closure.upvalues.indexOf(variable);
+    if (index != -1) return index;
+
+    boolean isLocal = variable.functionDepth == closure.functionDepth - 1;
+    int from = isLocal ? variable.slot
+                       : resolveUpvalue(closure.enclosing, variable);
+    closure.upvalues.add(variable);
+    closure.isLocal.add(isLocal);
+    closure.indexes.add(from);
+    return closure.upvalues.size() - 1;
+  }
+
+  private void locateDeclaration(Variable variable) {
+    Object declaration = variable.declaration;
+    if (declaration instanceof Stmt.Var) {
+      Stmt.Var stmt = (Stmt.Var)declaration;
+      stmt.isGlobal = false;
+      stmt.slot = variable.slot;
+      stmt.isCaptured = variable.isCaptured;
+    } else if (declaration instanceof Stmt.Function) {
+      Stmt.Function stmt = (Stmt.Function)declaration;
+      stmt.isGlobal = false;
+      stmt.slot = variable.slot;
+      stmt.isCaptured = variable.isCaptured;
+    } else if (declaration instanceof Stmt.Class) {
+      Stmt.Class stmt = (Stmt.Class)declaration;
+      stmt.isGlobal = false;
+      stmt.slot = variable.slot;
+      stmt.isCaptured = variable.isCaptured;
+    } else if (declaration instanceof Expr.Function) {
+      // "this" or a parameter, whose frame slot is its position.
+      ((Expr.Function)declaration).capturedParams[variable.slot] =
+          variable.isCaptured;
+    }
+  }
+
+  // 'slot' is an upvalue index if 'isUpvalue', otherwise a slot in the
+  // frame, which holds a cell if 'isCaptured'.
+  private void locate(Expr expr, int slot, boolean isCaptured,
+                      boolean isUpvalue) {
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable node = (Expr.Variable)expr;
+      node.isGlobal = false;
+      node.slot = slot;
+      node.isCaptured = isCaptured;
+      node.isUpvalue = isUpvalue;
+    } else if (expr instanceof Expr.Assign) {
+      Expr.Assign node = (Expr.Assign)expr;
+      node.isGlobal = false;
+      node.slot = slot;
+      node.isCaptured = isCaptured;
+      node.isUpvalue = isUpvalue;
+    } else if (expr instanceof Expr.This) {
+      Expr.This node = (Expr.This)expr;
+      node.isGlobal = false;
+      node.slot = slot;
+      node.isCaptured = isCaptured;
+      node.isUpvalue = isUpvalue;
+    } else if (expr instanceof Expr.Super) {
+      Expr.Super node = (Expr.Super)expr;
+      node.isGlobal = false;
+      node.slot = slot;
+      node.isCaptured = isCaptured;
+      node.isUpvalue = isUpvalue;
+    }
+  }
+
   void printScopes() {
    // debug("\nPrint scopes");
     Map<String, Variable> scope;
@@ -422,7 +666,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       return;
     }
     for (int i=0; i< scopes.size(); i++) {
-      scope = scopes.get(i);
+      scope = scopes.get(i).variables;
       for (String key: scope.keySet()) {
         Variable cVar = scope.get(key);
        // debug(key + ": " + cVar.name + ", " + cVar.state);
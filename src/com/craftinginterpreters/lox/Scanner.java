@@ -1,62 +1,100 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.craftinginterpreters.lox.TokenType.*; 
 
 class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  private final CharSequence source;
+  // The source as a String, or null when it is streamed from a file.
+  private final String text;
+  private final SourceReader reader;
+  private final List<Token> tokens;
+  // Index of the first token still in 'tokens', once the parser has
+  // released those before it.
+  private int base = 0;
+  private boolean isDone = false;
+  // End of the source read so far.
+  private int end;
   private int start = 0;
   private int current = 0;
   private int line = 1;
   private int col =0;
-  Token lastToken;
-
-  private static final Map<String, TokenType> keywords;
-
-  static {
-    keywords = new HashMap<>();
-    keywords.put("and",    AND);
-    keywords.put("break",    BREAK);
-    keywords.put("class",  CLASS);
-    keywords.put("continue",    CONTINUE);
-    keywords.put("else",   ELSE);
-    keywords.put("false",  FALSE);
-    keywords.put("for",    FOR);
-    keywords.put("fun",    FUN);
-    keywords.put("if",     IF);
-    keywords.put("nil",    NIL);
-    keywords.put("or",     OR);
-    keywords.put("print",  PRINT);
-    keywords.put("return", RETURN);
-    keywords.put("super",  SUPER);
-    keywords.put("this",   THIS);
-    keywords.put("true",   TRUE);
-    keywords.put("var",    VAR);
-    keywords.put("while",  WHILE);
-  }
+  // Type of the last token added, null before the first one.
+  private TokenType lastType = null;
+  // A newline that may end a statement. Whether it does depends on the
+  // next printable character, so it is settled when that is scanned.
+  private boolean isNewlinePending = false;
+  private int newlineOffset, newlineLine;
 
   Scanner(String source) {
     this.source = source;
+    this.text = source;
+    this.reader = null;
+    this.end = source.length();
+    // Typical code has a token every five or six characters, so a big
+    // source doesn't regrow the list many times.
+    this.tokens = new ArrayList<>(source.length() / 6 + 16);
+  }
+
+  // Scans a file as the parser asks for its tokens (--stream).
+  Scanner(SourceReader reader) {
+    this.source = reader;
+    this.text = null;
+    this.reader = reader;
+    this.end = 0;
+    this.tokens = new ArrayList<>();
   }
 
   List<Token> scanTokens() {
-    while (!isAtEnd()) {
+    while (!isDone) scanNext();
+    return tokens;
+  }
+
+  // The token at 'index', scanning on until it is there. Past the end
+  // of the source it is the EOF token.
+  Token token(int index) {
+    while (index - base >= tokens.size()) {
+      if (isDone) return tokens.get(tokens.size() - 1);
+      scanNext();
+    }
+    return tokens.get(index - base);
+  }
+
+  // Drops the tokens before 'index', which the parser is done with.
+  void release(int index) {
+    if (index <= base) return;
+    tokens.subList(0, index - base).clear();
+    base = index;
+  }
+
+  // Scans the next lexeme, which may add no token or a few, or ends
+  // the tokens with EOF.
+  private void scanNext() {
+    if (!isAtEnd()) {
       // We are at the beginning of the next lexeme.
       start = current;
       scanToken();
+      return;
     }
 
-    tokens.add(new Token(EOF, "", null, line, col+1));
-    return tokens;
+    if (isNewlinePending) endLine('\0');
+    addToken(makeToken(EOF, current, 0, null, line, col+1, -1));
+    isDone = true;
   }
 
   private boolean isAtEnd() {
-    return current >= source.length();
+    return isAtEnd(current);
+  }
+
+  // Whether 'index' is past the end of the source. A streamed source
+  // is read on from the file when the scanner gets there.
+  private boolean isAtEnd(int index) {
+    if (index < end) return false;
+    if (reader == null) return true;
+    end = reader.fill(index, start);
+    return index >= end;
   }
 
   private char advance() {
@@ -65,15 +103,16 @@ class Scanner {
     return source.charAt(current - 1);
   }
   
-  private String unescape(String escaped) {
+  // Unescapes the string literal in source[from, to).
+  private String unescape(int from, int to) {
     // Adding: escape sequence character
-    StringBuilder unescapeChar = new StringBuilder();
+    StringBuilder unescapeChar = new StringBuilder(to - from);
     
-    for (int i=0; i < escaped.length(); i++) {
-        if (escaped.charAt(i) == '\\') {
+    for (int i=from; i < to; i++) {
+        if (source.charAt(i) == '\\') {
             i++;
                 
-            switch (escaped.charAt(i)) {
+            switch (source.charAt(i)) {
                 case 'n':
                     unescapeChar.append("\n");
                     break;
@@ -101,10 +140,10 @@ class Scanner {
                 default:
                     Lox.error(line, col, 
                             "Unrecognized escape sequence '\\" + 
-                            escaped.charAt(i) + "'.");
+                            source.charAt(i) + "'.");
             }
         } else {
-            unescapeChar.append(escaped.charAt(i));
+            unescapeChar.append(source.charAt(i));
         }
     }
         
@@ -117,12 +156,31 @@ class Scanner {
   }
 
   private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line, col));
+    addToken(makeToken(type, start, current - start, literal, line, col,
+        -1));
+  }
+
+  private Token makeToken(TokenType type, int offset, int length,
+                          Object literal, int line, int col, int symbol) {
+    if (text != null) {
+      return new Token(type, text, offset, length, literal, line, col,
+          symbol);
+    }
+
+    // A streamed source is gone by the time anything asks for the text.
+    String lexeme = symbol != -1 ? Symbols.name(symbol)
+        : source.subSequence(offset, offset + length).toString();
+    return new Token(type, lexeme, offset, literal, line, col, symbol);
+  }
+
+  private void addToken(Token token) {
+    tokens.add(token);
+    lastType = token.type;
   }
 
   private void scanToken() {
     char c = advance();
+    if (isNewlinePending && isPrint(c)) endLine(c);
 
     switch (c) {
       case '(': addToken(LEFT_PAREN); break;
@@ -131,10 +189,9 @@ class Scanner {
 
       // Adding: automatic semicolon insertion
       case '}':
-        lastToken = tokens.get(tokens.size() -1);
-        if (lastToken.type != LEFT_BRACE &&
-                lastToken.type != RIGHT_BRACE && 
-                lastToken.type != SEMICOLON)
+        if (lastType != LEFT_BRACE &&
+                lastType != RIGHT_BRACE && 
+                lastType != SEMICOLON)
             addToken(SEMICOLON);
         addToken(RIGHT_BRACE); 
         break;
@@ -223,18 +280,15 @@ class Scanner {
         // System.out.println("Newline in scanner: " + line);
         line++;
         col =0;
-        // Automatic semicolon insertion
-        if (tokens.size() == 0) break;
-        lastToken = tokens.get(tokens.size() -1);
-        // No insert semicolon 
-        if (lastToken.type == RIGHT_PAREN && 
-                searchPrintable() == '{' ) {
-            // System.out.println("Voici: " + line + ", " + col + ", " + peek());
-            break;
-        } else if (lastToken.type !=  SEMICOLON &&
-                lastToken.type != LEFT_BRACE &&
-                lastToken.type != RIGHT_BRACE ) {
-            addToken(SEMICOLON);
+        // Automatic semicolon insertion, settled by endLine(). Only
+        // the first of several newlines in a row can insert one.
+        if (lastType == null || isNewlinePending) break;
+        if (lastType !=  SEMICOLON &&
+                lastType != LEFT_BRACE &&
+                lastType != RIGHT_BRACE ) {
+            isNewlinePending = true;
+            newlineOffset = start;
+            newlineLine = line;
         }
         break;
 
@@ -255,40 +309,128 @@ class Scanner {
     }
   }
 
+  // Ends the statement at the pending newline, unless it is a ')'
+  // followed by a '{' on a later line, like a function or an if
+  // statement with its brace on the next line. 'next' is the first
+  // printable character after the newline, or '\0' at the end.
+  private void endLine(char next) {
+    isNewlinePending = false;
+    if (lastType == RIGHT_PAREN && next == '{') return;
+    // The newline may already be out of a streamed source's buffer, so
+    // its text is given.
+    addToken(new Token(SEMICOLON, "\n", newlineOffset, null, newlineLine,
+        0, -1));
+  }
+
     private void identifier() {
     while (isAlphaNumeric(peek())) advance();
 
     // See if the identifier is a reserved word.   
-    String text = source.substring(start, current);
+    TokenType type = identifierType();
+    if (type == IDENTIFIER || type == THIS || type == SUPER) {
+      int symbol = Symbols.intern(source, start, current);
+      addToken(makeToken(type, start, current - start, null, line, col,
+          symbol));
+    } else {
+      addToken(type);
+    }
+
+  }
+
+  // Keywords are told apart by their first letters, as in clox, so
+  // most identifiers are known not to be one after a compare or two.
+  private TokenType identifierType() {
+    switch (source.charAt(start)) {
+      case 'a': return checkKeyword(1, "nd", AND);
+      case 'b': return checkKeyword(1, "reak", BREAK);
+      case 'c':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'l': return checkKeyword(2, "ass", CLASS);
+            case 'o': return checkKeyword(2, "ntinue", CONTINUE);
+          }
+        }
+        break;
+      case 'e': return checkKeyword(1, "lse", ELSE);
+      case 'f':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'a': return checkKeyword(2, "lse", FALSE);
+            case 'o': return checkKeyword(2, "r", FOR);
+            case 'u': return checkKeyword(2, "n", FUN);
+          }
+        }
+        break;
+      case 'i': return checkKeyword(1, "f", IF);
+      case 'n': return checkKeyword(1, "il", NIL);
+      case 'o': return checkKeyword(1, "r", OR);
+      case 'p': return checkKeyword(1, "rint", PRINT);
+      case 'r': return checkKeyword(1, "eturn", RETURN);
+      case 's': return checkKeyword(1, "uper", SUPER);
+      case 't':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'h': return checkKeyword(2, "is", THIS);
+            case 'r': return checkKeyword(2, "ue", TRUE);
+          }
+        }
+        break;
+      case 'v': return checkKeyword(1, "ar", VAR);
+      case 'w': return checkKeyword(1, "hile", WHILE);
+    }
+
+    return IDENTIFIER;
+  }
 
-    TokenType type = keywords.get(text);
-    if (type == null) type = IDENTIFIER;
-    addToken(type);
+  private TokenType checkKeyword(int offset, String rest, TokenType type) {
+    if (current - start != offset + rest.length()) return IDENTIFIER;
+    for (int i = 0; i < rest.length(); i++) {
+      if (source.charAt(start + offset + i) != rest.charAt(i)) {
+        return IDENTIFIER;
+      }
+    }
 
+    return type;
   }
 
   private void number() {
     while (isDigit(peek())) advance();
 
     // Look for a fractional part.                            
+    boolean isFraction = false;
     if (peek() == '.' && isDigit(peekNext())) {
       // Consume the "."                                      
       advance();
+      isFraction = true;
 
       while (isDigit(peek())) advance();
     }
 
-    addToken(NUMBER,
-        Double.parseDouble(source.substring(start, current)));
+    // Literals without a fractional part are integers, unless they are
+    // too large to be represented exactly as a double as well.
+    if (!isFraction && current - start <= 16) {
+      long value = 0;
+      for (int i = start; i < current; i++) {
+        value = value * 10 + (source.charAt(i) - '0');
+      }
+      addToken(NUMBER, Operators.integer(value));
+    } else {
+      addToken(NUMBER, Double.parseDouble(
+        source.subSequence(start, current).toString()));
+    }
   }
 
   private void string() {
+    boolean hasEscape = false;
     while (peek() != '"' && !isAtEnd()) {
       if (peek() == '\n') {
           line++;
           col =0;
       }
-      if (peek() == '\\' && peekNext()  == '"') advance();
+      if (peek() == '\\') {
+        hasEscape = true;
+        if (peekNext()  == '"') advance();
+      }
       advance();
     }
 
@@ -303,7 +445,8 @@ class Scanner {
     
     // Adding: Handle escapes sequences
     // Trim the surrounding quotes.                         
-    String value = unescape(source.substring(start + 1, current - 1));
+    String value = hasEscape ? unescape(start + 1, current - 1)
+        : source.subSequence(start + 1, current - 1).toString();
 
     addToken(STRING, value);
   }
@@ -324,7 +467,7 @@ class Scanner {
   }
 
   private char peekNext() {
-    if (current + 1 >= source.length()) return '\0';
+    if (isAtEnd(current + 1)) return '\0';
     return source.charAt(current + 1);
   } 
 
@@ -398,21 +541,4 @@ class Scanner {
   
   }
 
-  private char searchPrintable() {
-    // if (current + 1 >= source.length()) return '\0';
-    if (isAtEnd()) return '\0';
-    int cur = current;
-    char ch;
-    while (cur < source.length()) {
-        ch = source.charAt(cur);
-        if (isPrint(ch)) return ch;
-        cur++;
-    }
-
-    return '\0';
-  }
-
-
-
 }
-
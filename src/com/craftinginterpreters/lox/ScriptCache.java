@@ -0,0 +1,169 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+// A cache of resolved and optimized scripts on disk, so running the same
+// script again skips scanning, parsing and resolving. Each script is a
+// .loxc file named after a SHA-256 hash of its source, the format
+// version, the build of the interpreter and the options that change the
+// tree. Files are read with a memory-mapped read and written to a
+// temporary file first, so runs at the same time never see half of one.
+//
+// The name starts with a hash of the build alone. Each time a file is
+// written, files of other builds and files not used for MAX_AGE are
+// deleted, so the cache doesn't grow with every rebuild.
+//
+// The directory is $LOX_CACHE, or ~/.cache/lox.
+class ScriptCache {
+  // Bump when the format or anything that goes in it changes.
+  private static final int VERSION = 1;
+  private static final byte[] MAGIC = {'L', 'O', 'X', 'C'};
+  private static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+  private final Path file;
+  // The start of the names of this build's files.
+  private final String prefix;
+  private final byte[] key;
+  // The frame size of the script's top level, once loaded.
+  private int frameSize;
+
+  ScriptCache(byte[] source, boolean optimize) {
+    String build = build();
+    key = key(build, source, optimize);
+    prefix = hex(digest(build.getBytes())).substring(0, 16) + "-";
+    file = directory().resolve(prefix + hex(key) + ".loxc");
+  }
+
+  // The script, or null if it is not in the cache or the file is not
+  // valid.
+  List<Stmt> load() {
+    if (!Files.isRegularFile(file)) return null;
+
+    try (FileChannel channel = FileChannel.open(file)) {
+      MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      byte[] magic = new byte[MAGIC.length];
+      byte[] stored = new byte[key.length];
+      in.get(magic);
+      in.get(stored);
+      if (!Arrays.equals(magic, MAGIC) || !Arrays.equals(stored, key)) {
+        return null;
+      }
+
+      AstReader reader = new AstReader(in);
+      List<Stmt> statements = reader.read();
+      frameSize = reader.frameSize;
+      // Marks it used, for prune(). Failing to is no reason to miss.
+      file.toFile().setLastModified(System.currentTimeMillis());
+      return statements;
+    } catch (IOException | RuntimeException error) {
+      // Read it again from the source, and rewrite the file.
+      return null;
+    }
+  }
+
+  int scriptFrameSize() {
+    return frameSize;
+  }
+
+  // Saves the script, if it can be. The cache is only an optimization,
+  // so failing to write it is not an error.
+  void store(List<Stmt> statements, int frameSize) {
+    Path temporary = null;
+    try {
+      byte[] tree = new AstWriter().write(statements, frameSize);
+      Files.createDirectories(file.getParent());
+      temporary = Files.createTempFile(file.getParent(), "lox", ".tmp");
+      ByteBuffer bytes = ByteBuffer.allocate(
+          MAGIC.length + key.length + tree.length);
+      bytes.put(MAGIC).put(key).put(tree);
+      Files.write(temporary, bytes.array());
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException error) {
+      // Run without the cache.
+      if (temporary != null) temporary.toFile().delete();
+    }
+
+    prune();
+  }
+
+  // Deletes the files of other builds, and those not used for MAX_AGE.
+  // Temporary files are left to the runs writing them, unless they are
+  // as old.
+  private void prune() {
+    long oldest = System.currentTimeMillis() - MAX_AGE;
+    try (DirectoryStream<Path> files =
+             Files.newDirectoryStream(file.getParent())) {
+      for (Path path : files) {
+        String name = path.getFileName().toString();
+        boolean isOld = path.toFile().lastModified() < oldest;
+        if (name.endsWith(".loxc") && (!name.startsWith(prefix) || isOld) ||
+            name.endsWith(".tmp") && name.startsWith("lox") && isOld) {
+          Files.deleteIfExists(path);
+        }
+      }
+    } catch (IOException | RuntimeException error) {
+      // Try again on the next write.
+    }
+  }
+
+  private static Path directory() {
+    String directory = System.getenv("LOX_CACHE");
+    if (directory != null) return Paths.get(directory);
+    return Paths.get(System.getProperty("user.home"), ".cache", "lox");
+  }
+
+  private static byte[] key(String build, byte[] source, boolean optimize) {
+    MessageDigest digest = sha256();
+    digest.update(MAGIC);
+    digest.update((byte)VERSION);
+    digest.update(build.getBytes());
+    digest.update((byte)(optimize ? 1 : 0));
+    digest.update(source);
+    return digest.digest();
+  }
+
+  private static byte[] digest(byte[] bytes) {
+    return sha256().digest(bytes);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException error) {
+      throw new AssertionError(error);
+    }
+  }
+
+  // Tells builds of the interpreter apart by where its classes are and
+  // when they were compiled.
+  private static String build() {
+    URL classFile = ScriptCache.class.getResource("ScriptCache.class");
+    if (classFile == null) return "";
+    try {
+      return classFile + "@" + classFile.openConnection().getLastModified();
+    } catch (IOException error) {
+      return classFile.toString();
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) builder.append(String.format("%02x", b));
+    return builder.toString();
+  }
+}
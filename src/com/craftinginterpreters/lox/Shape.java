@@ -0,0 +1,47 @@
+package com.craftinginterpreters.lox;
+
+// The layout of a LoxInstance's fields: which slot of its values array
+// holds each field. Instances of a class that add the same fields in
+// the same order go through the same shapes, starting from the class's
+// root shape, so a shape also tells which class an instance belongs to.
+class Shape {
+  final LoxClass klass;
+  // Number of fields.
+  final int size;
+
+  // Slots by field symbol.
+  private final SymbolTable<Integer> indexes;
+  // The shapes reached by adding one more field to this one.
+  private final SymbolTable<Shape> transitions = new SymbolTable<>();
+
+  Shape(LoxClass klass) {
+    this.klass = klass;
+    this.size = 0;
+    this.indexes = new SymbolTable<>();
+  }
+
+  private Shape(Shape parent, int name) {
+    this.klass = parent.klass;
+    this.size = parent.size + 1;
+    this.indexes = new SymbolTable<>(parent.indexes);
+    indexes.put(name, parent.size);
+  }
+
+  // Returns the slot of the field, or -1 if the shape does not have it.
+  int indexOf(int name) {
+    Integer index = indexes.get(name);
+    if (index == null) return -1;
+    return index;
+  }
+
+  // Returns the shape with one more field, in the next slot.
+  Shape with(int name) {
+    Shape shape = transitions.get(name);
+    if (shape == null) {
+      shape = new Shape(this, name);
+      transitions.put(name, shape);
+    }
+
+    return shape;
+  }
+}
@@ -0,0 +1,86 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// A script file for --stream, decoded from UTF-8 a buffer at a time as
+// the Scanner gets to it. Characters are addressed by their offset in
+// the whole file, but only those from the start of the lexeme being
+// scanned onwards are kept, so memory doesn't grow with the file.
+class SourceReader implements CharSequence {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Reader reader;
+  private char[] buffer = new char[BUFFER_SIZE];
+  // File offsets of buffer[0] and of the end of what has been read.
+  private int bufferStart = 0;
+  private int bufferEnd = 0;
+  private boolean isAtEof = false;
+
+  SourceReader(Path path) throws IOException {
+    this.reader = new InputStreamReader(Files.newInputStream(path),
+        StandardCharsets.UTF_8);
+  }
+
+  // Reads until the character at 'index' is in the buffer or the file
+  // ends. Characters before 'keep' may be dropped to make room. Returns
+  // the offset of the end of what has been read.
+  int fill(int index, int keep) {
+    while (index >= bufferEnd && !isAtEof) {
+      if (bufferEnd - bufferStart == buffer.length) makeRoom(keep);
+      try {
+        int read = reader.read(buffer, bufferEnd - bufferStart,
+            buffer.length - (bufferEnd - bufferStart));
+        if (read == -1) {
+          isAtEof = true;
+          reader.close();
+        } else {
+          bufferEnd += read;
+        }
+      } catch (IOException error) {
+        throw new UncheckedIOException(error);
+      }
+    }
+    return bufferEnd;
+  }
+
+  // Moves the characters from 'keep' on to the front of the buffer,
+  // growing it if they fill it, as a long string or comment may.
+  private void makeRoom(int keep) {
+    int kept = bufferEnd - keep;
+    if (kept * 2 > buffer.length) {
+      char[] grown = new char[buffer.length * 2];
+      System.arraycopy(buffer, keep - bufferStart, grown, 0, kept);
+      buffer = grown;
+    } else {
+      System.arraycopy(buffer, keep - bufferStart, buffer, 0, kept);
+    }
+    bufferStart = keep;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return buffer[index - bufferStart];
+  }
+
+  // The length of what has been read so far.
+  @Override
+  public int length() {
+    return bufferEnd;
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return new String(buffer, start - bufferStart, end - start);
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, 0, bufferEnd - bufferStart);
+  }
+}
@@ -8,6 +8,7 @@ abstract class Stmt {
     R visitBreakStmt(Break stmt);
     R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
+    R visitForStmt(For stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
     R visitPrintStmt(Print stmt);
@@ -36,6 +37,9 @@ abstract class Stmt {
     }
 
     final Token keyword;
+
+    // Filled in after parsing.
+    boolean isInLoop;
   }
   static class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
@@ -51,6 +55,12 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+
+    // Filled in after parsing.
+    int slot;
+    boolean isGlobal = true;
+    boolean isCaptured;
+    int superSlot;
   }
   static class Expression extends Stmt {
     Expression(Expr expression) {
@@ -63,6 +73,23 @@ abstract class Stmt {
 
     final Expr expression;
   }
+  static class For extends Stmt {
+    For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    final Stmt initializer;
+    final Expr condition;
+    final Expr increment;
+    final Stmt body;
+  }
   static class Function extends Stmt {
     Function(Token name, Expr.Function function) {
       this.name = name;
@@ -75,6 +102,11 @@ abstract class Stmt {
 
     final Token name;
     final Expr.Function function;
+
+    // Filled in after parsing.
+    int slot;
+    boolean isGlobal = true;
+    boolean isCaptured;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -114,6 +146,9 @@ abstract class Stmt {
 
     final Token keyword;
     final Expr value;
+
+    // Filled in after parsing.
+    boolean isTailCall;
   }
   static class Var extends Stmt {
     Var(Token name, Expr initializer) {
@@ -127,6 +162,11 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    // Filled in after parsing.
+    int slot;
+    boolean isGlobal = true;
+    boolean isCaptured;
   }
   static class While extends Stmt {
     While(Expr condition, Stmt body) {
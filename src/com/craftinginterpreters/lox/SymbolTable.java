@@ -0,0 +1,95 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A map from symbol ids to values, for the runtime's tables of fields,
+// methods and globals. Keys are ints in an open-addressing table, so a
+// lookup is a multiply, a mask and usually a single int compare.
+class SymbolTable<V> {
+  private static final int EMPTY = -1;
+
+  private int[] keys;
+  private Object[] values;
+  private int count = 0;
+
+  SymbolTable() {
+    this(8);
+  }
+
+  // A table with room for 'size' entries before it grows.
+  SymbolTable(int size) {
+    int capacity = 8;
+    while (capacity < size * 2) capacity *= 2;
+    keys = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    values = new Object[capacity];
+  }
+
+  SymbolTable(SymbolTable<V> other) {
+    keys = other.keys.clone();
+    values = other.values.clone();
+    count = other.count;
+  }
+
+  // Returns the value for 'symbol', or null if it has none.
+  @SuppressWarnings("unchecked")
+  V get(int symbol) {
+    int mask = keys.length - 1;
+    for (int slot = Symbols.mix(symbol) & mask; ;
+         slot = (slot + 1) & mask) {
+      int key = keys[slot];
+      if (key == symbol) return (V)values[slot];
+      if (key == EMPTY) return null;
+    }
+  }
+
+  boolean containsKey(int symbol) {
+    return keys[find(symbol)] == symbol;
+  }
+
+  void put(int symbol, V value) {
+    int slot = find(symbol);
+    if (keys[slot] == EMPTY) {
+      // Keep the table at most half full.
+      if ((count + 1) * 2 > keys.length) {
+        grow();
+        slot = find(symbol);
+      }
+      keys[slot] = symbol;
+      count++;
+    }
+    values[slot] = value;
+  }
+
+  @SuppressWarnings("unchecked")
+  void putAll(SymbolTable<? extends V> other) {
+    for (int i = 0; i < other.keys.length; i++) {
+      if (other.keys[i] != EMPTY) put(other.keys[i], (V)other.values[i]);
+    }
+  }
+
+  // The slot holding 'symbol', or the empty slot where it would go.
+  private int find(int symbol) {
+    int mask = keys.length - 1;
+    int slot = Symbols.mix(symbol) & mask;
+    while (keys[slot] != symbol && keys[slot] != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void grow() {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new int[oldKeys.length * 2];
+    Arrays.fill(keys, EMPTY);
+    values = new Object[oldKeys.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// The global symbol table. Every identifier is interned once, as it is
+// scanned, and gets a dense integer id. Tokens carry the id, and the
+// runtime tables of globals, fields and methods are keyed by it, so a
+// name lookup compares ints instead of hashing and comparing strings.
+// All tokens for the same name also share one String.
+//
+// Symbols are only added by the main thread, while scanning. Other
+// threads may read names of ids they were given.
+final class Symbols {
+  // Open addressing on the name's hash, holding id + 1 (0 is empty).
+  private static int[] slots = new int[1024];
+  private static String[] names = new String[512];
+  private static int[] hashes = new int[512];
+  private static int count = 0;
+
+  static final int INIT = intern("init");
+
+  private Symbols() {}
+
+  static int intern(String name) {
+    return intern(name, 0, name.length());
+  }
+
+  // Interns the identifier source[start, end) without making a String
+  // for it, unless it is new.
+  static int intern(CharSequence source, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) hash = 31 * hash + source.charAt(i);
+
+    int mask = slots.length - 1;
+    for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+      int entry = slots[slot];
+      if (entry == 0) break;
+      int id = entry - 1;
+      if (hashes[id] == hash && matches(names[id], source, start, end)) {
+        return id;
+      }
+    }
+
+    return add(source.subSequence(start, end).toString(), hash);
+  }
+
+  static String name(int symbol) {
+    return names[symbol];
+  }
+
+  private static int add(String name, int hash) {
+    if (count == names.length) {
+      names = Arrays.copyOf(names, count * 2);
+      hashes = Arrays.copyOf(hashes, count * 2);
+    }
+    int id = count++;
+    names[id] = name;
+    hashes[id] = hash;
+
+    // Keep the table at most half full.
+    if (count * 2 > slots.length) {
+      slots = new int[slots.length * 2];
+      for (int i = 0; i < count; i++) insert(i);
+    } else {
+      insert(id);
+    }
+    return id;
+  }
+
+  private static void insert(int id) {
+    int mask = slots.length - 1;
+    int slot = mix(hashes[id]) & mask;
+    while (slots[slot] != 0) slot = (slot + 1) & mask;
+    slots[slot] = id + 1;
+  }
+
+  private static boolean matches(String name, CharSequence source,
+                                 int start, int end) {
+    if (name.length() != end - start) return false;
+    for (int i = 0; i < name.length(); i++) {
+      if (name.charAt(i) != source.charAt(start + i)) return false;
+    }
+    return true;
+  }
+
+  // Spreads the hash's high bits to the low ones the mask keeps.
+  static int mix(int hash) {
+    hash *= 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by a 'return f(...)' in tail position, once the callee and
+// arguments are evaluated. LoxFunction.call() catches it and runs the
+// callee in place of the returning function, so tail calls do not grow
+// the Java stack. The callee and arguments are left in the Interpreter,
+// which lets a single preallocated signal serve every tail call.
+class TailCall extends RuntimeException {
+  static final TailCall SIGNAL = new TailCall();
+
+  private TailCall() {
+    super(null, null, false, false);
+  }
+}
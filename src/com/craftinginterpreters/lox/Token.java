@@ -2,20 +2,50 @@ package com.craftinginterpreters.lox;
 
 class Token {
   final TokenType type;
-  final String lexeme;
   final Object literal;
   final int line, col; 
+  // The interned name of an identifier, 'this' or 'super', or -1.
+  final int symbol;
+  // Where the lexeme is in the source. Its text is only copied out when
+  // something asks for it, like an error message.
+  final int offset, length;
+  private final String source;
+  private String lexeme;
 
   Token(TokenType type, String lexeme, Object literal, int line, int col) {
+    this(type, lexeme, 0, lexeme.length(), literal, line, col,
+        type == TokenType.IDENTIFIER || type == TokenType.THIS ||
+        type == TokenType.SUPER ? Symbols.intern(lexeme) : -1);
+  }
+
+  Token(TokenType type, String source, int offset, int length,
+        Object literal, int line, int col, int symbol) {
     this.type = type;
-    this.lexeme = lexeme;
+    this.source = source;
+    this.offset = offset;
+    this.length = length;
     this.literal = literal;
     this.line = line;
     this.col = col;
+    this.symbol = symbol;
+    // A name's text is already in the symbol table.
+    if (symbol != -1) lexeme = Symbols.name(symbol);
+  }
+
+  // A token whose text was copied out as it was scanned, for a streamed
+  // source that isn't kept whole.
+  Token(TokenType type, String lexeme, int offset, Object literal,
+        int line, int col, int symbol) {
+    this(type, null, offset, lexeme.length(), literal, line, col, symbol);
+    this.lexeme = lexeme;
+  }
+
+  String lexeme() {
+    if (lexeme == null) lexeme = source.substring(offset, offset + length);
+    return lexeme;
   }
 
   public String toString() {
-    return "<" + type + "," + lexeme + "," + literal + "," + line + "," + col + ">";
+    return "<" + type + "," + lexeme() + "," + literal + "," + line + "," + col + ">";
   }
 }
-
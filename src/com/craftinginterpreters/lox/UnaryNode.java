@@ -0,0 +1,67 @@
+package com.craftinginterpreters.lox;
+
+// Self-specializing implementation of a unary operator, following
+// the same scheme as BinaryNode. The prefix and postfix operators
+// assign their variable and stay in the Interpreter.
+abstract class UnaryNode {
+
+  abstract Object execute(Expr.Unary expr, Object right);
+
+  static UnaryNode specialize(Token operator, Object right) {
+    if (right instanceof Long) {
+      switch (operator.type) {
+        case MINUS:   return LONG_NEGATE;
+        case BIT_NOT: return LONG_BIT_NOT;
+      }
+    }
+
+    if (right instanceof Double && operator.type == TokenType.MINUS) {
+      return DOUBLE_NEGATE;
+    }
+
+    return GENERIC;
+  }
+
+  static Object generalize(Expr.Unary expr, Object right) {
+    expr.node = GENERIC;
+    return Operators.unary(expr.operator, right);
+  }
+
+  static final UnaryNode GENERIC = new UnaryNode() {
+    Object execute(Expr.Unary expr, Object right) {
+      return Operators.unary(expr.operator, right);
+    }
+  };
+
+  // A node for an operator on a double. The Interpreter can call
+  // executeDouble() directly to keep the result unboxed.
+  abstract static class DoubleNode extends UnaryNode {
+    abstract double executeDouble(double right);
+
+    Object execute(Expr.Unary expr, Object right) {
+      if (right instanceof Double) return executeDouble((double)right);
+      return generalize(expr, right);
+    }
+  }
+
+  static final UnaryNode DOUBLE_NEGATE = new DoubleNode() {
+    double executeDouble(double right) {
+      return -right;
+    }
+  };
+
+  static final UnaryNode LONG_NEGATE = new UnaryNode() {
+    Object execute(Expr.Unary expr, Object right) {
+      if (right instanceof Long) return Operators.subtract(0, (long)right);
+      return generalize(expr, right);
+    }
+  };
+
+  static final UnaryNode LONG_BIT_NOT = new UnaryNode() {
+    Object execute(Expr.Unary expr, Object right) {
+      if (right instanceof Long) return ~(long)right;
+      return generalize(expr, right);
+    }
+  };
+
+}
@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by Interpreter.evaluateDouble() when an expression expected
+// to give a number gives something else, carrying the actual value.
+class UnexpectedResult extends RuntimeException {
+  final Object value;
+
+  UnexpectedResult(Object value) {
+    super(null, null, false, false);
+    this.value = value;
+  }
+}
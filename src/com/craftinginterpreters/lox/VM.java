@@ -0,0 +1,704 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Stack-based virtual machine running the bytecode produced by the
+// Compiler. Lox calls do not recurse on the Java stack: each call
+// pushes a CallFrame and the dispatch loop carries on.
+class VM {
+
+  private static final int FRAMES_MAX = 1 << 16;
+
+  private static class CallFrame {
+    VmClosure closure;
+    int ip;
+    // Stack slot of the callee, slot zero of the frame.
+    int base;
+  }
+
+  final SymbolTable<Object> globals = new SymbolTable<>();
+
+  private Object[] stack = new Object[256];
+  private int sp = 0;
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+  // Open upvalues, sorted by stack slot, the highest first.
+  private VmUpvalue openUpvalues;
+
+  Object outputResult;
+  boolean isPrint = false;
+
+  VM() {
+    globals.put(Symbols.intern("clock"), new Clock());
+    globals.put(Symbols.intern("println"), new Println());
+    globals.put(Symbols.intern("readln"), new Readln());
+  }
+
+  void interpret(VmFunction script) {
+    if (runScript(script)) finishScript();
+  }
+
+  // Runs compiled top-level code, which may be all of a script or, with
+  // --stream, one declaration of it at a time. Returns false if a
+  // runtime error stopped it.
+  boolean runScript(VmFunction script) {
+    try {
+      VmClosure closure = new VmClosure(script);
+      stack[0] = closure;
+      sp = 1;
+      pushFrame(closure, 0, null);
+      run();
+      return true;
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+      return false;
+    } finally {
+      Arrays.fill(stack, null);
+      sp = 0;
+      frameCount = 0;
+      openUpvalues = null;
+    }
+  }
+
+  // Called at the end of a script that ran without a runtime error.
+  void finishScript() {
+    // whether no print statement
+    if (!isPrint) printResult();
+    isPrint = false;
+  }
+
+  private void printResult() {
+    if (Operators.isString(outputResult) || outputResult instanceof Double ||
+            outputResult instanceof Long ||
+            outputResult instanceof Boolean) {
+        System.out.println(Operators.stringify(outputResult));
+        outputResult = null;
+    }
+  }
+
+  private void run() {
+    CallFrame frame = frames[frameCount - 1];
+    Chunk chunk = frame.closure.function.chunk;
+    byte[] code = chunk.code;
+    Object[] constants = chunk.constants;
+    VmUpvalue[] upvalues = frame.closure.upvalues;
+    int ip = frame.ip;
+    int base = frame.base;
+    Object[] stack = this.stack;
+    int sp = this.sp;
+
+    for (;;) {
+      int start = ip;
+      switch (code[ip++]) {
+        case OpCode.CONSTANT:
+          stack[sp++] = constants[readShort(code, ip)];
+          ip += 2;
+          break;
+
+        case OpCode.NIL: stack[sp++] = null; break;
+        case OpCode.TRUE: stack[sp++] = true; break;
+        case OpCode.FALSE: stack[sp++] = false; break;
+        case OpCode.POP: sp--; break;
+        case OpCode.DUP: stack[sp] = stack[sp - 1]; sp++; break;
+        case OpCode.RESULT: outputResult = stack[sp - 1]; break;
+
+        case OpCode.GET_LOCAL:
+          stack[sp++] = stack[base + (code[ip++] & 0xff)];
+          break;
+
+        case OpCode.SET_LOCAL:
+          stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+          break;
+
+        case OpCode.GET_UPVALUE: {
+          VmUpvalue upvalue = upvalues[code[ip++] & 0xff];
+          stack[sp++] = upvalue.isOpen ? stack[upvalue.slot] :
+              upvalue.closed;
+          break;
+        }
+
+        case OpCode.SET_UPVALUE: {
+          VmUpvalue upvalue = upvalues[code[ip++] & 0xff];
+          if (upvalue.isOpen) {
+            stack[upvalue.slot] = stack[sp - 1];
+          } else {
+            upvalue.closed = stack[sp - 1];
+          }
+          break;
+        }
+
+        case OpCode.GET_GLOBAL: {
+          int name = (int)constants[readShort(code, ip)];
+          ip += 2;
+          Object value = globals.get(name);
+          if (value == null && !globals.containsKey(name)) {
+            throw new RuntimeError(chunk.tokens[start],
+                "Undefined variable '" + Symbols.name(name) + "'.");
+          }
+          stack[sp++] = value;
+          break;
+        }
+
+        case OpCode.DEFINE_GLOBAL: {
+          int name = (int)constants[readShort(code, ip)];
+          ip += 2;
+          globals.put(name, stack[--sp]);
+          break;
+        }
+
+        case OpCode.SET_GLOBAL: {
+          int name = (int)constants[readShort(code, ip)];
+          ip += 2;
+          if (!globals.containsKey(name)) {
+            throw new RuntimeError(chunk.tokens[start],
+                "Undefined variable '" + Symbols.name(name) + "'.");
+          }
+          globals.put(name, stack[sp - 1]);
+          break;
+        }
+
+        case OpCode.GET_PROPERTY: {
+          int name = (int)constants[readShort(code, ip)];
+          ip += 2;
+          stack[sp - 1] = getProperty(stack[sp - 1], name,
+              chunk.tokens[start]);
+          break;
+        }
+
+        case OpCode.SET_PROPERTY: {
+          int name = (int)constants[readShort(code, ip)];
+          ip += 2;
+          Object object = stack[sp - 2];
+          if (!(object instanceof VmInstance)) {
+            throw new RuntimeError(chunk.tokens[start],
+                "Only instances have fields.");
+          }
+          Object value = stack[--sp];
+          ((VmInstance)object).fields.put(name, value);
+          stack[sp - 1] = value;
+          break;
+        }
+
+        case OpCode.GET_SUPER: {
+          int name = (int)constants[readShort(code, ip)];
+          ip += 2;
+          VmClass superclass = (VmClass)stack[--sp];
+          VmClosure method = superclass.methods.get(name);
+          if (method == null) {
+            throw new RuntimeError(chunk.tokens[start],
+                "Undefined property '" + Symbols.name(name) + "'.");
+          }
+          stack[sp - 1] = new VmBoundMethod(stack[sp - 1], method);
+          break;
+        }
+
+        case OpCode.EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if ((a instanceof Double && b instanceof Double) ||
+              (a instanceof Long && b instanceof Long)) {
+            stack[sp - 1] = a.equals(b);
+          } else {
+            stack[sp - 1] = Operators.binary(chunk.tokens[start], a, b);
+          }
+          break;
+        }
+
+        case OpCode.NOT_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if ((a instanceof Double && b instanceof Double) ||
+              (a instanceof Long && b instanceof Long)) {
+            stack[sp - 1] = !a.equals(b);
+          } else {
+            stack[sp - 1] = Operators.binary(chunk.tokens[start], a, b);
+          }
+          break;
+        }
+
+        case OpCode.GREATER: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Long && b instanceof Long) {
+            stack[sp - 1] = (long)a > (long)b;
+          } else if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a > (double)b;
+          } else {
+            stack[sp - 1] = Operators.binary(chunk.tokens[start], a, b);
+          }
+          break;
+        }
+
+        case OpCode.GREATER_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Long && b instanceof Long) {
+            stack[sp - 1] = (long)a >= (long)b;
+          } else if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a >= (double)b;
+          } else {
+            stack[sp - 1] = Operators.binary(chunk.tokens[start], a, b);
+          }
+          break;
+        }
+
+        case OpCode.LESS: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Long && b instanceof Long) {
+            stack[sp - 1] = (long)a < (long)b;
+          } else if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a < (double)b;
+          } else {
+            stack[sp - 1] = Operators.binary(chunk.tokens[start], a, b);
+          }
+          break;
+        }
+
+        case OpCode.LESS_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Long && b instanceof Long) {
+            stack[sp - 1] = (long)a <= (long)b;
+          } else if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a <= (double)b;
+          } else {
+            stack[sp - 1] = Operators.binary(chunk.tokens[start], a, b);
+          }
+          break;
+        }
+
+        case OpCode.ADD: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Long && b instanceof Long) {
+            stack[sp - 1] = Operators.add((long)a, (long)b);
+          } else if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a + (double)b;
+          } else {
+            stack[sp - 1] = Operators.binary(chunk.tokens[start], a, b);
+          }
+          break;
+        }
+
+        case OpCode.SUBTRACT: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Long && b instanceof Long) {
+            stack[sp - 1] = Operators.subtract((long)a, (long)b);
+          } else if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a - (double)b;
+          } else {
+            stack[sp - 1] = Operators.binary(chunk.tokens[start], a, b);
+          }
+          break;
+        }
+
+        case OpCode.MULTIPLY: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Long && b instanceof Long) {
+            stack[sp - 1] = Operators.multiply((long)a, (long)b);
+          } else if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a * (double)b;
+          } else {
+            stack[sp - 1] = Operators.binary(chunk.tokens[start], a, b);
+          }
+          break;
+        }
+
+        case OpCode.DIVIDE:
+        case OpCode.MODULO:
+        case OpCode.POWER:
+        case OpCode.BIT_AND:
+        case OpCode.BIT_OR:
+        case OpCode.BIT_XOR:
+        case OpCode.SHIFT_LEFT:
+        case OpCode.SHIFT_RIGHT: {
+          Object b = stack[--sp];
+          stack[sp - 1] = Operators.binary(chunk.tokens[start],
+              stack[sp - 1], b);
+          break;
+        }
+
+        case OpCode.NOT:
+          stack[sp - 1] = !Operators.isTruthy(stack[sp - 1]);
+          break;
+
+        case OpCode.NEGATE: {
+          Object value = stack[sp - 1];
+          if (value instanceof Long) {
+            stack[sp - 1] = Operators.subtract(0, (long)value);
+          } else if (value instanceof Double) {
+            stack[sp - 1] = -(double)value;
+          } else {
+            stack[sp - 1] = Operators.unary(chunk.tokens[start], value);
+          }
+          break;
+        }
+
+        case OpCode.UNARY_PLUS:
+        case OpCode.BIT_NOT:
+          stack[sp - 1] = Operators.unary(chunk.tokens[start],
+              stack[sp - 1]);
+          break;
+
+        case OpCode.INCREMENT:
+          Operators.checkNumberOperand(chunk.tokens[start], stack[sp - 1]);
+          stack[sp - 1] = Operators.increment(stack[sp - 1], 1);
+          break;
+
+        case OpCode.DECREMENT:
+          Operators.checkNumberOperand(chunk.tokens[start], stack[sp - 1]);
+          stack[sp - 1] = Operators.increment(stack[sp - 1], -1);
+          break;
+
+        case OpCode.COMPOUND: {
+          Object cur = stack[--sp];
+          stack[sp - 1] = Operators.compound(chunk.tokens[start], cur,
+              stack[sp - 1]);
+          break;
+        }
+
+        case OpCode.PRINT:
+          System.out.println(Operators.stringify(stack[--sp]));
+          isPrint = true;
+          break;
+
+        case OpCode.JUMP:
+          ip += readShort(code, ip) + 2;
+          break;
+
+        case OpCode.JUMP_IF_FALSE:
+          if (!Operators.isTruthy(stack[--sp])) {
+            ip += readShort(code, ip);
+          }
+          ip += 2;
+          break;
+
+        case OpCode.JUMP_IF_FALSE_OR_POP:
+          if (!Operators.isTruthy(stack[sp - 1])) {
+            ip += readShort(code, ip);
+          } else {
+            sp--;
+          }
+          ip += 2;
+          break;
+
+        case OpCode.JUMP_IF_TRUE_OR_POP:
+          if (Operators.isTruthy(stack[sp - 1])) {
+            ip += readShort(code, ip);
+          } else {
+            sp--;
+          }
+          ip += 2;
+          break;
+
+        case OpCode.LOOP:
+          ip -= readShort(code, ip) - 2;
+          break;
+
+        case OpCode.CALL: {
+          int argCount = code[ip++] & 0xff;
+          frame.ip = ip;
+          this.sp = sp;
+          callValue(stack[sp - argCount - 1], argCount, chunk.tokens[start]);
+
+          frame = frames[frameCount - 1];
+          chunk = frame.closure.function.chunk;
+          code = chunk.code;
+          constants = chunk.constants;
+          upvalues = frame.closure.upvalues;
+          ip = frame.ip;
+          base = frame.base;
+          stack = this.stack;
+          sp = this.sp;
+          break;
+        }
+
+        // A Lox function called from a return statement takes over the
+        // caller's frame, so tail calls run in constant frame space.
+        // Anything else is called as by CALL, and the RETURN after it
+        // returns the result.
+        case OpCode.TAIL_CALL: {
+          int argCount = code[ip++] & 0xff;
+          int calleeSlot = sp - argCount - 1;
+          VmClosure closure = tailCallee(calleeSlot);
+          if (closure != null) {
+            if (argCount != closure.function.arity) {
+              throw new RuntimeError(chunk.tokens[start], "Expected " +
+                  closure.function.arity + " arguments but got " +
+                  argCount + ".");
+            }
+
+            closeUpvalues(base);
+            System.arraycopy(stack, calleeSlot, stack, base, argCount + 1);
+            sp = base + argCount + 1;
+            int needed = base + closure.function.maxStack;
+            if (needed > stack.length) {
+              stack = Arrays.copyOf(stack, Math.max(needed, stack.length * 2));
+              this.stack = stack;
+            }
+
+            frame.closure = closure;
+            chunk = closure.function.chunk;
+            code = chunk.code;
+            constants = chunk.constants;
+            upvalues = closure.upvalues;
+            ip = 0;
+            break;
+          }
+
+          frame.ip = ip;
+          this.sp = sp;
+          callValue(stack[calleeSlot], argCount, chunk.tokens[start]);
+
+          frame = frames[frameCount - 1];
+          chunk = frame.closure.function.chunk;
+          code = chunk.code;
+          constants = chunk.constants;
+          upvalues = frame.closure.upvalues;
+          ip = frame.ip;
+          base = frame.base;
+          stack = this.stack;
+          sp = this.sp;
+          break;
+        }
+
+        case OpCode.CLOSURE: {
+          VmFunction function = (VmFunction)constants[readShort(code, ip)];
+          ip += 2;
+          VmClosure closure = new VmClosure(function);
+          for (int i = 0; i < closure.upvalues.length; i++) {
+            boolean isLocal = code[ip++] != 0;
+            int index = code[ip++] & 0xff;
+            closure.upvalues[i] = isLocal ?
+                captureUpvalue(base + index) : upvalues[index];
+          }
+          stack[sp++] = closure;
+          break;
+        }
+
+        case OpCode.CLOSE_UPVALUE:
+          closeUpvalues(sp - 1);
+          sp--;
+          break;
+
+        case OpCode.RETURN: {
+          Object result = stack[--sp];
+          closeUpvalues(base);
+          frameCount--;
+          if (frameCount == 0) {
+            this.sp = 0;
+            return;
+          }
+
+          sp = base;
+          stack[sp++] = result;
+
+          frame = frames[frameCount - 1];
+          chunk = frame.closure.function.chunk;
+          code = chunk.code;
+          constants = chunk.constants;
+          upvalues = frame.closure.upvalues;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+
+        case OpCode.CLASS:
+          stack[sp++] = new VmClass(
+              Symbols.name((int)constants[readShort(code, ip)]));
+          ip += 2;
+          break;
+
+        case OpCode.INHERIT: {
+          Object superclass = stack[sp - 2];
+          if (!(superclass instanceof VmClass)) {
+            throw new RuntimeError(chunk.tokens[start],
+                "Superclass must be a class.");
+          }
+          VmClass subclass = (VmClass)stack[--sp];
+          subclass.methods.putAll(((VmClass)superclass).methods);
+          subclass.initializer = ((VmClass)superclass).initializer;
+          break;
+        }
+
+        case OpCode.METHOD: {
+          int name = (int)constants[readShort(code, ip)];
+          ip += 2;
+          VmClosure method = (VmClosure)stack[--sp];
+          VmClass klass = (VmClass)stack[sp - 1];
+          klass.methods.put(name, method);
+          if (name == Symbols.INIT) klass.initializer = method;
+          break;
+        }
+
+        case OpCode.THROW:
+          throw new RuntimeError(chunk.tokens[start],
+              (String)constants[readShort(code, ip)]);
+      }
+    }
+  }
+
+  private static int readShort(byte[] code, int ip) {
+    return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+  }
+
+  private Object getProperty(Object object, int name, Token token) {
+    if (!(object instanceof VmInstance)) {
+      throw new RuntimeError(token, "Only instances have properties.");
+    }
+
+    VmInstance instance = (VmInstance)object;
+    Object value = instance.fields.get(name);
+    if (value != null || instance.fields.containsKey(name)) {
+      return value;
+    }
+
+    VmClosure method = instance.klass.methods.get(name);
+    if (method != null) return new VmBoundMethod(instance, method);
+
+    throw new RuntimeError(token,
+        "Undefined property '" + Symbols.name(name) + "'.");
+  }
+
+  // Calls the callee below the arguments on top of the stack. Lox
+  // functions get a new frame; natives run at once and leave their
+  // result in place of the callee.
+  private void callValue(Object callee, int argCount, Token paren) {
+    int calleeSlot = sp - argCount - 1;
+
+    if (callee instanceof VmClosure) {
+      call((VmClosure)callee, argCount, calleeSlot, paren);
+      return;
+    }
+
+    if (callee instanceof VmBoundMethod) {
+      VmBoundMethod bound = (VmBoundMethod)callee;
+      stack[calleeSlot] = bound.receiver;
+      call(bound.method, argCount, calleeSlot, paren);
+      return;
+    }
+
+    if (callee instanceof VmClass) {
+      VmClass klass = (VmClass)callee;
+      stack[calleeSlot] = new VmInstance(klass);
+      if (klass.initializer != null) {
+        call(klass.initializer, argCount, calleeSlot, paren);
+      } else if (argCount != 0) {
+        throw new RuntimeError(paren, "Expected 0 arguments but got " +
+            argCount + ".");
+      } else {
+        sp = calleeSlot + 1;
+      }
+      return;
+    }
+
+    if (callee instanceof LoxCallable) {
+      LoxCallable function = (LoxCallable)callee;
+      if (argCount != function.arity()) {
+        throw new RuntimeError(paren, "Expected " +
+            function.arity() + " arguments but got " +
+            argCount + ".");
+      }
+      if (callee instanceof Println) isPrint = true;
+
+      List<Object> arguments = new ArrayList<>(argCount);
+      for (int i = 0; i < argCount; i++) {
+        arguments.add(stack[calleeSlot + 1 + i]);
+      }
+      // Natives do not use the tree-walking interpreter.
+      stack[calleeSlot] = function.call(null, arguments);
+      sp = calleeSlot + 1;
+      return;
+    }
+
+    throw new RuntimeError(paren,
+        "Can only call functions and classes.");
+  }
+
+  // The function a tail call at 'calleeSlot' goes to, with a bound
+  // method's receiver put in place of the callee. Null if the callee is
+  // not a Lox function.
+  private VmClosure tailCallee(int calleeSlot) {
+    Object callee = stack[calleeSlot];
+    if (callee instanceof VmClosure) return (VmClosure)callee;
+
+    if (callee instanceof VmBoundMethod) {
+      VmBoundMethod bound = (VmBoundMethod)callee;
+      stack[calleeSlot] = bound.receiver;
+      return bound.method;
+    }
+
+    return null;
+  }
+
+  private void call(VmClosure closure, int argCount, int calleeSlot,
+                    Token paren) {
+    if (argCount != closure.function.arity) {
+      throw new RuntimeError(paren, "Expected " +
+          closure.function.arity + " arguments but got " +
+          argCount + ".");
+    }
+
+    pushFrame(closure, calleeSlot, paren);
+  }
+
+  private void pushFrame(VmClosure closure, int base, Token paren) {
+    if (frameCount == frames.length) {
+      if (frameCount == FRAMES_MAX) {
+        throw new RuntimeError(paren, "Stack overflow.");
+      }
+      frames = Arrays.copyOf(frames, frameCount * 2);
+    }
+
+    int needed = base + closure.function.maxStack;
+    if (needed > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(needed, stack.length * 2));
+    }
+
+    CallFrame frame = frames[frameCount];
+    if (frame == null) {
+      frame = new CallFrame();
+      frames[frameCount] = frame;
+    }
+    frameCount++;
+
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.base = base;
+  }
+
+  private VmUpvalue captureUpvalue(int slot) {
+    VmUpvalue previous = null;
+    VmUpvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+
+    if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+    VmUpvalue created = new VmUpvalue(slot, upvalue);
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+
+    return created;
+  }
+
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      VmUpvalue upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.isOpen = false;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+}
@@ -0,0 +1,17 @@
+package com.craftinginterpreters.lox;
+
+class VmClass {
+  final String name;
+  // Inherited methods are copied down when the class is created.
+  final SymbolTable<VmClosure> methods = new SymbolTable<>();
+  VmClosure initializer;
+
+  VmClass(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+class VmClosure {
+  final VmFunction function;
+  final VmUpvalue[] upvalues;
+
+  VmClosure(VmFunction function) {
+    this.function = function;
+    this.upvalues = new VmUpvalue[function.upvalueCount];
+  }
+
+  @Override
+  public String toString() {
+    return function.toString();
+  }
+}
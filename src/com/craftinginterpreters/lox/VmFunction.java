@@ -0,0 +1,23 @@
+package com.craftinginterpreters.lox;
+
+// A function compiled to bytecode. Closures over it are created at
+// run time by the CLOSURE instruction.
+class VmFunction {
+  final String name;
+  final int arity;
+  final Chunk chunk = new Chunk();
+  int upvalueCount = 0;
+  // Upper bound of the stack slots a call needs, locals included.
+  int maxStack = 0;
+
+  VmFunction(String name, int arity) {
+    this.name = name;
+    this.arity = arity;
+  }
+
+  @Override
+  public String toString() {
+    if (name == null) return "<Fn Lambda>";
+    return "<Fn " + name + ">";
+  }
+}
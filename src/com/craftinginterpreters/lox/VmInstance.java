@@ -0,0 +1,15 @@
+package com.craftinginterpreters.lox;
+
+class VmInstance {
+  final VmClass klass;
+  final SymbolTable<Object> fields = new SymbolTable<>();
+
+  VmInstance(VmClass klass) {
+    this.klass = klass;
+  }
+
+  @Override
+  public String toString() {
+    return klass.name + " instance";
+  }
+}
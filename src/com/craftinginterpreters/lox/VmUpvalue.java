@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+// A variable captured by a closure. While the variable still lives on
+// the VM stack the upvalue is open and refers to its slot; when the
+// variable goes out of scope the value is moved into the upvalue.
+class VmUpvalue {
+  final int slot;
+  boolean isOpen = true;
+  Object closed;
+  VmUpvalue next;
+
+  VmUpvalue(int slot, VmUpvalue next) {
+    this.slot = slot;
+    this.next = next;
+  }
+}
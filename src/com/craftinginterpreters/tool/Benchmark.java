@@ -0,0 +1,83 @@
+package com.craftinginterpreters.tool;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import com.craftinginterpreters.lox.Lox;
+import com.sun.management.ThreadMXBean;
+
+// Runs a Lox script, then reports the time it took, the bytes the
+// interpreter allocated doing it, and the heap still in use afterwards
+// (which includes everything reachable from global variables).
+// With --scan, it only scans the script, over and over, and reports
+// the scanner's throughput.
+// Usage: benchmark [--engine=tree|closure|vm] script
+//        benchmark --scan script
+public class Benchmark {
+  // How long the scanner runs before and while it is measured.
+  private static final long WARMUP_NANOS = 2_000_000_000L;
+  private static final long MEASURE_NANOS = 3_000_000_000L;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 2 && args[0].equals("--scan")) {
+      scan(args[1]);
+      return;
+    }
+
+    ThreadMXBean threads = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    // Without the .loxc cache, so every run measures the same work.
+    String[] loxArgs = new String[args.length + 1];
+    loxArgs[0] = "--no-cache";
+    System.arraycopy(args, 0, loxArgs, 1, args.length);
+
+    long startBytes = threads.getCurrentThreadAllocatedBytes();
+    long startTime = System.nanoTime();
+    Lox.main(loxArgs);
+    long time = System.nanoTime() - startTime;
+    long bytes = threads.getCurrentThreadAllocatedBytes() - startBytes;
+
+    System.err.println("time: " + (time / 1000000) + " ms");
+    System.err.println("allocated: " + (bytes / 1024) + " KB");
+
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    long live = runtime.totalMemory() - runtime.freeMemory();
+    System.err.println("live heap: " + (live / 1024) + " KB");
+  }
+
+  private static void scan(String path) throws IOException {
+    byte[] bytes = Files.readAllBytes(Paths.get(path));
+    String source = new String(bytes, Charset.defaultCharset());
+    ThreadMXBean threads = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    long end = System.nanoTime() + WARMUP_NANOS;
+    while (System.nanoTime() < end) Lox.scan(source);
+
+    int runs = 0;
+    int tokens = 0;
+    long startBytes = threads.getCurrentThreadAllocatedBytes();
+    long startTime = System.nanoTime();
+    long time;
+    do {
+      tokens = Lox.scan(source);
+      runs++;
+      time = System.nanoTime() - startTime;
+    } while (time < MEASURE_NANOS);
+    long allocated = threads.getCurrentThreadAllocatedBytes() - startBytes;
+
+    double seconds = time / 1e9;
+    System.err.println("source: " + (bytes.length / 1024) + " KB, " +
+        tokens + " tokens");
+    System.err.println("time per scan: " +
+        String.format("%.2f", seconds * 1000 / runs) + " ms");
+    System.err.println("throughput: " +
+        String.format("%.1f", bytes.length * (double)runs / seconds / 1e6) +
+        " MB/s");
+    System.err.println("allocated per scan: " +
+        (allocated / runs / 1024) + " KB");
+  }
+}
@@ -15,17 +15,24 @@ public class GenerateAst {
     String outputDir = args[0];
     defineAst(outputDir, "Expr", Arrays.asList(
 
-      "Assign   : Token name, Token equals, Expr value",
+      "Assign   : Token name, Token equals, Expr value" +
+                  " : int slot, boolean isGlobal = true, boolean isCaptured," +
+                  " boolean isUpvalue, Environment.Cell cell",
 
-      "Binary   : Expr left, Token operator, Expr right",
+      "Binary   : Expr left, Token operator, Expr right : BinaryNode node",
 
       "Ternary   : Expr condition, Expr thenBranch, Expr elseBranch",
 
-      "Call     : Expr callee, Token paren, List<Expr> arguments",
+      "Call     : Expr callee, Token paren, List<Expr> arguments" +
+                  " : InlineCache cache = new InlineCache(InlineCache.Kind.CALL)",
 
-      "Get      : Expr object, Token name",
+      "Get      : Expr object, Token name" +
+                  " : InlineCache cache = new InlineCache(InlineCache.Kind.GET)",
 
-      "Function : List<Token> params, List<Stmt> body",
+      "Function : List<Token> params, List<Stmt> body" +
+                  " : int slotCount, boolean[] capturedParams," +
+                  " boolean[] upvalueIsLocal, int[] upvalueIndexes," +
+                  " ClosureCompiler.Executor code, volatile LazyBody lazy",
       
       "Grouping : Expr expression",
 
@@ -33,15 +40,23 @@ public class GenerateAst {
 
       "Logical  : Expr left, Token operator, Expr right",
 
-      "Set      : Expr object, Token name, Expr value",
+      "Set      : Expr object, Token name, Expr value" +
+                  " : InlineCache cache = new InlineCache(InlineCache.Kind.SET)",
 
-      "Super    : Token keyword, Token method",
+      "Super    : Token keyword, Token method" +
+                  " : int slot, boolean isGlobal = true, boolean isCaptured," +
+                  " boolean isUpvalue, Expr.This receiver",
 
-      "This     : Token keyword",
+      "This     : Token keyword" +
+                  " : int slot, boolean isGlobal = true, boolean isCaptured," +
+                  " boolean isUpvalue",
 
-      "Unary    : Token operator, Expr right, Boolean isPostfix",
+      "Unary    : Token operator, Expr right, Boolean isPostfix" +
+                  " : UnaryNode node",
 
-      "Variable : Token name"
+      "Variable : Token name" +
+                  " : int slot, boolean isGlobal = true, boolean isCaptured," +
+                  " boolean isUpvalue, Environment.Cell cell"
 
     ));
 
@@ -49,22 +64,29 @@ public class GenerateAst {
 
       "Block      : List<Stmt> statements",
 
-      "Break      : Token keyword",
+      "Break      : Token keyword : boolean isInLoop",
 
       "Class      : Token name, Expr.Variable superclass," +
-                  " List<Stmt.Function> methods",
+                  " List<Stmt.Function> methods" +
+                  " : int slot, boolean isGlobal = true, boolean isCaptured," +
+                  " int superSlot",
 
       "Expression : Expr expression",
 
-      "Function   : Token name, Expr.Function function",
+      "For        : Stmt initializer, Expr condition, Expr increment," +
+                  " Stmt body",
+
+      "Function   : Token name, Expr.Function function" +
+                  " : int slot, boolean isGlobal = true, boolean isCaptured",
 
       "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
 
       "Print      : Expr expression",
 
-      "Return     : Token keyword, Expr value",
+      "Return     : Token keyword, Expr value : boolean isTailCall",
 
-      "Var        : Token name, Expr initializer",
+      "Var        : Token name, Expr initializer" +
+                  " : int slot, boolean isGlobal = true, boolean isCaptured",
 
       "While      : Expr condition, Stmt body"
 
@@ -88,10 +110,14 @@ public class GenerateAst {
     defineVisitor(writer, baseName, types);
 
     // The AST classes.                                     
+    // An optional third part lists the fields filled in after parsing,
+    // by the Resolver or the Interpreter.
     for (String type : types) {
-      String className = type.split(":")[0].trim();
-      String fields = type.split(":")[1].trim(); 
-      defineType(writer, baseName, className, fields);
+      String[] parts = type.split(":");
+      String className = parts[0].trim();
+      String fields = parts[1].trim(); 
+      String resolvedFields = parts.length > 2 ? parts[2].trim() : null;
+      defineType(writer, baseName, className, fields, resolvedFields);
     }
 
     // The base accept() method.                                   
@@ -117,7 +143,7 @@ public class GenerateAst {
 
   private static void defineType(
       PrintWriter writer, String baseName,
-      String className, String fieldList) {
+      String className, String fieldList, String resolvedFieldList) {
     writer.println("  static class " + className + " extends " +
         baseName + " {");
 
@@ -146,6 +172,14 @@ public class GenerateAst {
       writer.println("    final " + field + ";");
     }
 
+    if (resolvedFieldList != null) {
+      writer.println();
+      writer.println("    // Filled in after parsing.");
+      for (String field : resolvedFieldList.split(", ")) {
+        writer.println("    " + field + ";");
+      }
+    }
+
     writer.println("  }");
   }
 